@@ -42,9 +42,6 @@ import java.rmi.*;
 import java.rmi.server.*;
 import java.rmi.registry.*;
 
-import net.sourceforge.jpcap.capture.*;
-import net.sourceforge.jpcap.net.*;
-
 import cokshare.*;
 
 /**
@@ -68,22 +65,56 @@ public class COKd extends UnicastRemoteObject
 
 	/** Stored preferences object */
 	protected COKPrefs cokPrefs;
+
+	/** Timer which periodically logs capture statistics */
+	protected Timer statsTimer;
 	
 	// Here lie the implementations for a COKManager
 
 	/**
-	 * (Re)Initialize the daemon by creating or restarting the capture
-	 * thread (which in turn rebuilds the current knock list
+	 * Initialize the daemon by creating and starting the capture
+	 * thread.  Once it is running knocks are set and removed on the
+	 * live thread, which swaps them in without restarting anything.
 	 */
 	private void InitializeCOKd() {
 		//System.out.println("COKdaemon re-initialized!");
-		SimpleSyslogger.syslog("COKdaemon re-initialized!");
+		SimpleSyslogger.syslog("COKdaemon initialized!");
 		if (pcapThread == null) {
+			int dropPolicy = cokPrefs.dropPolicy;
+			if (dropPolicy < 0)
+				dropPolicy = (cokPrefs.replayFile != null) ? PacketRing.BLOCK : PacketRing.DROP_NEWEST;
+			// sockets queue datagrams themselves, there is nothing to ring
+			int queueSize = cokPrefs.listenSockets ? 0 : cokPrefs.queueSize;
 			pcapThread = new PacketCaptureThread(knockdescs,
-												 cokPrefs.captureDevice);
+												 buildPacketSources(),
+												 queueSize,
+												 dropPolicy,
+												 cokPrefs.shards,
+												 cokPrefs.sequenceLimit);
 			pcapThread.start();
-		} else 
-			pcapThread.restartCapture(knockdescs);	
+		}
+	}
+
+	/**
+	 * Build the sources packets are captured from, either live
+	 * devices, a capture file to replay, or plain UDP sockets
+	 *
+	 * @return the PacketSources specified by the preferences
+	 */
+	private PacketSource[] buildPacketSources() {
+		if (cokPrefs.listenSockets)
+			return new PacketSource[] { new DatagramPacketSource() };
+		if (cokPrefs.replayFile != null)
+			return new PacketSource[] { new PcapFilePacketSource(cokPrefs.replayFile,
+																 cokPrefs.replayTimed,
+																 cokPrefs.replayLoops) };
+		if (cokPrefs.captureDevices.isEmpty())
+			return new PacketSource[] { new JpcapPacketSource(null) };
+
+		PacketSource[] sources = new PacketSource[cokPrefs.captureDevices.size()];
+		for (int x = 0; x < sources.length; x++)
+			sources[x] = new JpcapPacketSource((String)cokPrefs.captureDevices.get(x));
+		return sources;
 	}
 
 	/**
@@ -178,12 +209,12 @@ public class COKd extends UnicastRemoteObject
 	 * indicates that the passed ruleset was contained no rules, and
 	 * the port has been unassociated!
 	 */
-	public int setKnock(KnockDescriptor knockdesc) {
+	public synchronized int setKnock(KnockDescriptor knockdesc) {
 
-		int retval = COKManager.RULE_ERROR;
+		if (pcapThread != null)
+			return pcapThread.setKnock(knockdesc);
 
-		if (pcapThread != null) 
-			knockdescs = pcapThread.getKnockDescriptors();
+		int retval = COKManager.RULE_ERROR;
 
 		for (Iterator it = knockdescs.iterator(); it.hasNext(); ) {
 			KnockDescriptor checkdesc = (KnockDescriptor)it.next();
@@ -212,12 +243,12 @@ public class COKd extends UnicastRemoteObject
 	 * @return an int specifying if the knock existed or not: 0 means
 	 * no, 3 means yes!
 	 */
-	public int removeKnock(KnockDescriptor knockdesc) {
+	public synchronized int removeKnock(KnockDescriptor knockdesc) {
 		
-		int retval = COKManager.RULE_ERROR;		
+		if (pcapThread != null)
+			return pcapThread.removeKnock(knockdesc);
 
-		if (pcapThread != null) 
-			knockdescs = pcapThread.getKnockDescriptors();
+		int retval = COKManager.RULE_ERROR;		
 
 		for (Iterator it = knockdescs.iterator(); it.hasNext(); ) {
 			KnockDescriptor checkdesc = (KnockDescriptor)it.next();
@@ -228,8 +259,6 @@ public class COKd extends UnicastRemoteObject
 			}
 		}
 
-		InitializeCOKd();
-
 		return retval;
 	}
 
@@ -286,6 +315,20 @@ public class COKd extends UnicastRemoteObject
 		if (cokPrefs.verbose)
 			SimpleSyslogger.mirrorSTDOUT();
 
+		if (cokPrefs.statsInterval > 0) {
+			statsTimer = new Timer(true);
+			statsTimer.schedule(new TimerTask() {
+					public void run() {
+						PacketCaptureThread thread = pcapThread;
+						if (thread != null) {
+							String[] stats = thread.getStatistics();
+							for (int x = 0; x < stats.length; x++)
+								SimpleSyslogger.syslog(stats[x]);
+						}
+					}
+				}, cokPrefs.statsInterval * 1000L, cokPrefs.statsInterval * 1000L);
+		}
+
 		SimpleSyslogger.syslog("Starting RMI registry on port " + REGISTRY_PORT + " ...");
 		myRMIRegistry = LocateRegistry.createRegistry(REGISTRY_PORT);
 
@@ -329,11 +372,44 @@ public class COKd extends UnicastRemoteObject
 				cokPrefs.readStoredKnocks = false;
 			} else if (arg.equals("--interface") || arg.equals("-i")) {
 				if (x+1<args.length)
-					cokPrefs.captureDevice=args[++x];
+					cokPrefs.addCaptureDevices(args[++x]);
 				else {
 					System.out.println("-i requires device argument");
 					usage();
 				}
+			} else if (arg.equals("--replay") || arg.equals("-r")) {
+				if (x+1<args.length)
+					cokPrefs.replayFile=args[++x];
+				else {
+					System.out.println("-r requires file argument");
+					usage();
+				}
+			} else if (arg.equals("--timed") || arg.equals("-t")) {
+				cokPrefs.replayTimed = true;
+			} else if (arg.equals("--loop") || arg.equals("-l")) {
+				cokPrefs.replayLoops = parseIntArg(args, ++x, "-l");
+			} else if (arg.equals("--listen") || arg.equals("-L")) {
+				cokPrefs.listenSockets = true;
+			} else if (arg.equals("--queue") || arg.equals("-q")) {
+				cokPrefs.queueSize = parseIntArg(args, ++x, "-q");
+			} else if (arg.equals("--drop") || arg.equals("-D")) {
+				if (x+1<args.length) {
+					try {
+						cokPrefs.dropPolicy = PacketRing.parseDropPolicy(args[++x]);
+					} catch (IllegalArgumentException e) {
+						System.out.println(e.getMessage());
+						usage();
+					}
+				} else {
+					System.out.println("-D requires policy argument");
+					usage();
+				}
+			} else if (arg.equals("--shards") || arg.equals("-S")) {
+				cokPrefs.shards = parseIntArg(args, ++x, "-S");
+			} else if (arg.equals("--sequence-limit") || arg.equals("-m")) {
+				cokPrefs.sequenceLimit = parseIntArg(args, ++x, "-m");
+			} else if (arg.equals("--stats") || arg.equals("-s")) {
+				cokPrefs.statsInterval = parseIntArg(args, ++x, "-s");
 			} else if (arg.equals("--help") || arg.equals("-h")) {
 				usage();
 			}  else {
@@ -345,6 +421,30 @@ public class COKd extends UnicastRemoteObject
 		return cokPrefs;
 	}
 
+	/**
+	 * Parse a non-negative numeric command-line argument, bailing out
+	 * with usage() if it is missing or bogus
+	 *
+	 * @param args   the command-line
+	 * @param x      index of the argument to parse
+	 * @param option option the argument belongs to, for the complaint
+	 *
+	 * @return the parsed value
+	 */
+	private static int parseIntArg(String[] args, int x, String option) {
+		int value = -1;
+		if (x < args.length) {
+			try {
+				value = Integer.parseInt(args[x]);
+			} catch (NumberFormatException e) {}
+		}
+		if (value < 0) {
+			System.out.println(option + " requires a numeric argument");
+			usage();
+		}
+		return value;
+	}
+
 	/**
 	 * Display some sort of help and exit
 	 */
@@ -352,7 +452,17 @@ public class COKd extends UnicastRemoteObject
 		System.out.println("COKd Usage: %runCOKd.pl <options>");
 		System.out.println("Options: --debug   (-d)                  : Print debugging output to STDOUT");
 		System.out.println("         --verbose (-v)                  : same as --debug");
-		System.out.println("         --interface <device> (-i <dev>) : Specify interface to listen on");
+		System.out.println("         --interface <device> (-i <dev>) : Specify interface to listen on, repeat or");
+		System.out.println("                                           separate with commas for several");
+		System.out.println("         --replay <file> (-r <file>)     : Replay a libpcap capture file, unfiltered, instead of capturing");
+		System.out.println("         --timed   (-t)                  : Replay at the recorded timing");
+		System.out.println("         --loop <count> (-l <count>)     : Replay the capture file count times");
+		System.out.println("         --listen  (-L)                  : Serve UDP OTP knocks from sockets instead of capturing");
+		System.out.println("         --queue <size> (-q <size>)      : Packets queued for evaluation, 0 disables queueing");
+		System.out.println("         --drop <policy> (-D <policy>)   : When the queue is full drop newest, oldest or block");
+		System.out.println("         --shards <n> (-S <n>)           : Evaluate on n threads, split by source address");
+		System.out.println("         --sequence-limit <n> (-m <n>)   : Most sources part way through a port sequence (65536)");
+		System.out.println("         --stats <secs> (-s <secs>)      : Log capture and queue statistics every secs seconds");
 		System.out.println("         --clear   (-C)                  : Delete stored knocks on startup");
 		System.out.println("         --ignore  (-I)                  : Ignore stored knocks on startup");
 		System.out.println("         --help    (-h)                  : Print this lovely help screen");
@@ -372,285 +482,49 @@ public class COKd extends UnicastRemoteObject
 		/** Do we produce output to STDOUT? */
 		public boolean verbose = false;
 
-		/** Device to capture packets on */
-		public String captureDevice;
-	}
-}
-
-/**
- * Thread in which the packet capturing occurs!
- */
-class PacketCaptureThread extends Thread {
-
-	protected static final int INFINITE = -1;
-	protected static final int PACKET_COUNT = INFINITE;	
-	protected String pcapFilter = "";
-
-	protected String captureDevice;
-	protected PacketHandler packetHandler;
-	protected PacketCapture packetCapture;
-
-	HashSet knockdescs;
-
-	PacketCaptureThread(HashSet knockdescs, String captureDevice) {
-		this.knockdescs = new HashSet(knockdescs);
-		this.captureDevice = captureDevice;
-	}
-
-	PacketCaptureThread(HashSet knockdescs) {
-		this.knockdescs = new HashSet(knockdescs);
-	}
-
-	public void run() {
-		if (knockdescs.size() > 0) 
-			beginCapture();
-	}
-
-	public HashSet getKnockDescriptors() {
-		HashSet rethash = null;
-		if (packetHandler != null)
-			rethash = packetHandler.getKnockDescriptors();
-		return rethash;
-	}
-
-	/**
-	 * Actually begin the capturing process.
-	 */
-	private void beginCapture() {
-		try {
-			packetCapture = new PacketCapture();
-
-			// later allow device to listen on to be specified.
-			if (captureDevice == null || captureDevice.length() == 0) {
-				SimpleSyslogger.syslog("Finding capture device... ");
-				try {
-					captureDevice = packetCapture.findDevice();
-					SimpleSyslogger.syslog("Found device: " + captureDevice);
-				} catch (CaptureDeviceNotFoundException e) {
-					SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): Could not find available device!");
-					return;
-				}
-			} else {
-				SimpleSyslogger.syslog("Using specified capture device: " + captureDevice);
-			}
-
-			SimpleSyslogger.syslog("Attempting to Open " + captureDevice + "... ");
-			try {
-				packetCapture.open(captureDevice, true);
-				SimpleSyslogger.syslog("success!");
-			} catch (CaptureDeviceOpenException e) {
-				SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): Failed to open " + captureDevice + "!  Make sure you are root, and the device exists!\n\t" + e.getMessage());
-				return;
-			}
-
-			buildFilter();
-			SimpleSyslogger.syslog("Setting filter on " + captureDevice + "... ["+pcapFilter+"]");
-			try {
-				packetCapture.setFilter(pcapFilter, true);
-				SimpleSyslogger.syslog("success!");
-			} catch (InvalidFilterException e) {
-				SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): Failed!  The filter string is invalid!" + e.getMessage());
-			}
-
-		} catch (AccessControlException e) {
-			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): " + e.getMessage());
-		}
-
+		/** Devices to capture packets on, found automatically if empty */
+		public Vector captureDevices = new Vector();
 
-		SimpleSyslogger.syslog("Adding packet listener... ");
-		packetHandler = new PacketHandler(knockdescs);
-		packetCapture.addPacketListener(packetHandler);
-		
-		SimpleSyslogger.syslog("Beginning packet capture... ");
-		try {
-			packetCapture.capture(PACKET_COUNT);
-		} catch (CapturePacketException e) {
-			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): An error occurred during packet capture!" + e.getMessage());
-		}
-	}
-
-	/**
-	 * "Restart" the capture session by rebuilding the pcap Filter
-	 * string, deleting the old listener, and adding a new one
-	 *
-	 * @param knockdescs a Hashset containing the current knock
-	 *  descriptors
-	 */
-	public void restartCapture(HashSet knockdescs) {
-		this.knockdescs = new HashSet(knockdescs);
-		packetCapture.removePacketListener(packetHandler);
-
-		buildFilter();
-		SimpleSyslogger.syslog("Setting new filter on " + captureDevice + "... ["+pcapFilter+"]");
-		try {
-			packetCapture.setFilter(pcapFilter, true);
-			SimpleSyslogger.syslog("success!");
-		} catch (InvalidFilterException e) {
-			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): Failed!  The filter string is invalid!" + e.getMessage());
-		}
-		packetHandler = new PacketHandler(knockdescs);
-		packetCapture.addPacketListener(packetHandler);
-	}
-
-	/**
-	 * Stop packet capture by removing all listeners, though the
-	 * device will remain open officially
-	 */
-	public void stopCapture() {
-		this.knockdescs = null;
-		packetCapture.removePacketListener(packetHandler);
-		packetCapture.close();
-	}
-	
-	/**
-	 * Gather all of the current knock descriptors, parse the ports on
-	 * which they listen, and build a nice filter for libpcap to chew
-	 * on
-	 */
-	private void buildFilter() {
-		HashSet TCPports = new HashSet();
-		HashSet UDPports = new HashSet();
-
-		pcapFilter = "";
-
-		KnockDescriptor rawKnockDesc;
-		for (Iterator it = knockdescs.iterator(); it.hasNext(); ) {
-			rawKnockDesc=(KnockDescriptor)it.next();
-
-			if (rawKnockDesc != null) {
-						
-				if (rawKnockDesc instanceof PortSequenceKnockDescriptor) {
-					Vector portSeq = ((PortSequenceKnockDescriptor)rawKnockDesc).getPortSeq();
-
-					if (portSeq != null) {
-						for (int p = 0; p < portSeq.size(); p++)
-							TCPports.add((Integer)portSeq.get(p));
-								
-					} 
-				}
-						
-				else if (rawKnockDesc instanceof UDP_OTP_KnockDescriptor) {
-					int p = ((UDP_OTP_KnockDescriptor)rawKnockDesc).getPort();
-					UDPports.add(new Integer(p));
-				}
-						
-				else {
-					SimpleSyslogger.syslog("Unknown knock type: " + rawKnockDesc.getKnockDesc());
-				}
-			} 
-		}
-
-		if (TCPports.size() > 0) {					
-			Iterator it = TCPports.iterator();
-			pcapFilter += " tcp port " + ((Integer)it.next()).intValue();
-			while(it.hasNext()) {
-				pcapFilter += " or tcp port " + ((Integer)it.next()).intValue();
-			}
-		}
-
-		if (UDPports.size() > 0) {
-			Iterator it = UDPports.iterator();
-			if (pcapFilter.trim().length() > 0)
-				pcapFilter += " or ";
-			pcapFilter += "udp port " + ((Integer)it.next()).intValue();
-			while(it.hasNext()) {
-				pcapFilter += " or udp port " + ((Integer)it.next()).intValue();
-			}
-		}
-	}
-
-}
+		/** Capture file to replay instead of capturing live */
+		public String replayFile;
 
-/** 
- * Class which handles incoming packets and does the right thing with them
- */
-class PacketHandler implements PacketListener {
-
-	Vector PortSeqKnocks;
-	Vector UDP_OTP_Knocks;
-	Vector DNSKnocks;
-
-	/**
-	 * Constructor... takes knock from the hash, puts them in the queue
-	 */
-	PacketHandler(HashSet knockdescs) {
-
-		PortSeqKnocks  = new Vector();
-		UDP_OTP_Knocks = new Vector();
-		DNSKnocks      = new Vector();
-		
-		Knock rawKnock;
-		for (Iterator it= knockdescs.iterator(); it.hasNext();) {
-			KnockDescriptor desc = (KnockDescriptor)it.next();
-
-			rawKnock = null;
-			if (desc instanceof PortSequenceKnockDescriptor) {
-				rawKnock = new PortSequenceKnock((PortSequenceKnockDescriptor)desc);
-				PortSeqKnocks.add(rawKnock);
-			} else if (desc instanceof DNSKnockDescriptor) {
-				rawKnock = new DNSKnock((DNSKnockDescriptor)desc);
-				DNSKnocks.add(rawKnock);
-			} else if (desc instanceof UDP_OTP_KnockDescriptor) {
-				rawKnock = new UDP_OTP_Knock((UDP_OTP_KnockDescriptor)desc);
-				UDP_OTP_Knocks.add(rawKnock);
-								   
-			} else {
-				SimpleSyslogger.syslog(" >>> Got unknown knock type "+rawKnock.getKnockDescriptor().getKnockDesc());
-			}
-			
-			if (rawKnock != null)
-				SimpleSyslogger.syslog(rawKnock.getKnockDescriptor().getKnockDesc());
+		/** Do we replay at recorded timing or as fast as possible? */
+		public boolean replayTimed = false;
 
-		}
-	}
+		/** Number of times to replay the capture file */
+		public int replayLoops = 1;
 
-	/**
-	 * Gather all of the active knock descriptors, and return them to
-	 * COKd's RMI thread, in an effort to synchronize state
-	 *
-	 * @return a Hashset containing the knock descriptors from all of
-	 *   the active knocks
-	 */
-	public HashSet getKnockDescriptors() {
-		HashSet knockdescs = new HashSet();
+		/** Do we serve UDP OTP knocks from sockets rather than capture? */
+		public boolean listenSockets = false;
 
-		for (int x = 0; x < PortSeqKnocks.size(); x++)
-			knockdescs.add(((PortSequenceKnock)PortSeqKnocks.get(x)).getKnockDescriptor());
+		/** Packets queued between capture and evaluation, 0 for none */
+		public int queueSize = 4096;
 
-		for (int x = 0; x < UDP_OTP_Knocks.size(); x++)
-			knockdescs.add(((UDP_OTP_Knock)UDP_OTP_Knocks.get(x)).getKnockDescriptor());
+		/** PacketRing drop policy, negative picks one for the source */
+		public int dropPolicy = -1;
 
-		for (int x = 0; x < DNSKnocks.size(); x++)
-			knockdescs.add(((DNSKnock)DNSKnocks.get(x)).getKnockDescriptor());
-	
-		return knockdescs;
-	}
+		/** Evaluation threads, packets are split between them by source */
+		public int shards = 1;
 
-	/**
-	 * Call the right handler for an incoming packet
-	 *
-	 * @param packet Packet to check and hand off...
-	 */
-	public void packetArrived(Packet packet) {
+		/** Sources port-sequence progress is kept for, the oldest are evicted */
+		public int sequenceLimit = 65536;
 
-		if (packet instanceof TCPPacket) {
-			for (int x = 0; x < PortSeqKnocks.size(); x++) {
-				((Knock)PortSeqKnocks.get(x)).checkPacket(packet);
-			}
-		} else if (packet instanceof UDPPacket) {
+		/** Seconds between statistics log messages, 0 for never */
+		public int statsInterval = 0;
 
-			// Check for DNS Knocks...
-			if (((UDPPacket)packet).getDestinationPort() == 53) {
-				for (int x = 0; x < DNSKnocks.size(); x++) {
-					((Knock)DNSKnocks.get(x)).checkPacket(packet);
-				}
+		/**
+		 * Add capture devices from a -i argument, which may name
+		 * several devices separated by commas
+		 *
+		 * @param devices one or more device names
+		 */
+		public void addCaptureDevices(String devices) {
+			StringTokenizer st = new StringTokenizer(devices, ",");
+			while (st.hasMoreTokens()) {
+				String device = st.nextToken().trim();
+				if (device.length() > 0 && !captureDevices.contains(device))
+					captureDevices.add(device);
 			}
-
-			for (int x = 0; x < UDP_OTP_Knocks.size(); x++)
-				((Knock)UDP_OTP_Knocks.get(x)).checkPacket(packet);
-
 		}
-		
 	}
-
 }
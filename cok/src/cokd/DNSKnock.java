@@ -32,12 +32,10 @@
 
 package cokd;
 
-import net.sourceforge.jpcap.net.*;
-import net.sourceforge.jpcap.util.*;
-
 import cokshare.KnockDescriptor;
 import cokshare.UDP_OTP_KnockDescriptor;
 import cokshare.DNSKnockDescriptor;
+import cokshare.MDC;
 
 /**
  * Class defining "DNS Knocks" which are <code>UDP_OTP_Knock</code>s
@@ -47,13 +45,49 @@ import cokshare.DNSKnockDescriptor;
  * <code>_</code> separated) name lookups are for domains in the form 
  * <code>[One Time Password].[knockDomain]</code>.  For example a DNS Knock 
  * query could be for <code>INCH_SEA_ANNE_LONG_AHEM_TOUR.knocking.org</code>.
+ * <p>
+ * Questions are parsed in place in the packet, following compression
+ * pointers, and every label and pointer is checked against the
+ * payload before it is read, so a malformed query is dropped without
+ * building anything or throwing.  The knock domain is matched label
+ * by label, ignoring case as DNS does.
  *
  * @see cokd.UDP_OTP_Knock
  */
 public class DNSKnock extends UDP_OTP_Knock {
 
+	/** length of the DNS header */
+	protected static final int HEADER_LENGTH = 12;
+	/** longest a name may be, in wire format */
+	protected static final int MAX_NAME = 255;
+	/** most labels a name of MAX_NAME bytes can have */
+	protected static final int MAX_LABELS = MAX_NAME / 2;
+	/** longest a label may be */
+	protected static final int MAX_LABEL = 63;
+
 	/** Host suffix specifying the knock domain */
 	protected String knockDomain;
+	/** the knock domain's labels, in lower case */
+	protected byte[][] domainLabels;
+
+	/**
+	 * Where each evaluating thread parses names, and decodes the
+	 * password label
+	 */
+	private static class Scratch {
+		/** offset of each label of the name last parsed */
+		int[] labels = new int[MAX_LABELS];
+		/** number of labels in the name last parsed */
+		int count;
+		/** the password label with its '_'s made spaces */
+		byte[] otp = new byte[MAX_LABEL];
+		/** slot the password is decoded into */
+		long[] decoded = new long[1];
+	}
+
+	private static final ThreadLocal scratches = new ThreadLocal() {
+			protected Object initialValue() { return new Scratch(); }
+		};
 
 	/**
 	 * Constructor
@@ -64,72 +98,177 @@ public class DNSKnock extends UDP_OTP_Knock {
 		super((UDP_OTP_KnockDescriptor)desc);
 
 		this.knockDomain = desc.getKnockDomain();
+		this.domainLabels = toLabels(knockDomain);
+	}
+
+	/**
+	 * @param domain a dotted domain name, may be null
+	 *
+	 * @return its labels in lower case, leaving out empty ones
+	 */
+	private static byte[][] toLabels(String domain) {
+		if (domain == null)
+			return new byte[0][];
+		String[] parts = domain.toLowerCase().split("\\.");
+		int count = 0;
+		for (int x = 0; x < parts.length; x++)
+			if (parts[x].length() > 0)
+				count++;
+		byte[][] labels = new byte[count][];
+		count = 0;
+		for (int x = 0; x < parts.length; x++)
+			if (parts[x].length() > 0)
+				labels[count++] = parts[x].getBytes();
+		return labels;
+	}
+
+	/**
+	 * Check an incoming DNS packet: if it is a standard query, walk
+	 * each question's name, and if it is in the knock domain check
+	 * its first label as a one time password, with _'s read as
+	 * spaces, via the facilities defined by <code>UDP_OTP_Knock</code>
+	 *
+	 * @param packet a view of an incoming packet to check... it
+	 * should be a UDP packet...
+	 */
+	public void checkPacket(PacketView packet) {
+		if (!packet.isUDP() || packet.getPayloadLength() < HEADER_LENGTH)
+			return;
+
+		byte[] dnsdata = packet.getData();
+		int base = packet.getPayloadOffset();
+		int end = base + packet.getPayloadLength();
+
+		// only standard queries, no responses
+		if ((dnsdata[base + 2] & 0xf8) != 0)
+			return;
+		int questions = ((dnsdata[base + 4] & 0xff) << 8) | (dnsdata[base + 5] & 0xff);
+
+		// a lone question must start with a password-shaped label
+		if (questions == 1) {
+			int first = (base + HEADER_LENGTH < end) ? dnsdata[base + HEADER_LENGTH] & 0xff : 0;
+			if (first < MIN_OTP_PAYLOAD || first > MAX_OTP_PAYLOAD ||
+				base + HEADER_LENGTH + 1 + first > end) {
+				rejects.reject(packet.getShard(), RejectCounters.LENGTH);
+				return;
+			}
+			if (!MDC.otpShaped(dnsdata, base + HEADER_LENGTH + 1, first)) {
+				rejects.reject(packet.getShard(), RejectCounters.SHAPE);
+				return;
+			}
+		}
+
+		Scratch scratch = (Scratch)scratches.get();
+		int pos = base + HEADER_LENGTH;
+		for (int x = 0; x < questions; x++) {
+			pos = readName(dnsdata, base, pos, end, scratch);
+			// the name is followed by the query type and class
+			if (pos < 0 || pos + 4 > end)
+				return;
+			pos += 4;
+
+			if (inKnockDomain(dnsdata, scratch))
+				checkLabel(dnsdata, scratch.labels[0], packet, scratch);
+		}
 	}
 
 	/**
-	 * Check an incoming DNS packet by extracting the appropriate
-	 * data, and if it is, then checking it is a query for the
-	 * "correct" domain, after which the one time password is extract,
-	 * _'s are removed, and it is checked via the facilities defined
-	 * by <code>UDP_OTP_Knock</code>
+	 * Walk a name in place, noting where each of its labels starts.
+	 * Compression pointers must point back to somewhere earlier
+	 * than the label or pointer before them, so every name ends.
+	 *
+	 * @param data    buffer holding the DNS message
+	 * @param base    offset of the message in data
+	 * @param pos     offset of the name in data
+	 * @param end     offset just past the message
+	 * @param scratch where the labels are noted
 	 *
-	 * @param inPacket an incoming packet to check... it should have
-	 * been forced to be a UDPPacket by COKd...
+	 * @return the offset just past the name where it was found, or
+	 *   -1 if the name is malformed or runs off the end
+	 */
+	private static int readName(byte[] data, int base, int pos, int end, Scratch scratch) {
+		int count = 0;
+		int length = 1;
+		int after = -1;
+		int limit = pos;
+		while (true) {
+			if (pos >= end)
+				return -1;
+			int len = data[pos] & 0xff;
+			if (len == 0)
+				break;
+
+			if ((len & 0xc0) == 0xc0) {
+				if (pos + 1 >= end)
+					return -1;
+				int target = base + (((len & 0x3f) << 8) | (data[pos + 1] & 0xff));
+				if (after < 0)
+					after = pos + 2;
+				if (target >= limit || target < base + HEADER_LENGTH)
+					return -1;
+				pos = limit = target;
+				continue;
+			}
+			// 0x40 and 0x80 are label types nobody uses
+			if ((len & 0xc0) != 0)
+				return -1;
+
+			length += len + 1;
+			if (length > MAX_NAME || pos + 1 + len > end)
+				return -1;
+			scratch.labels[count++] = pos + 1;
+			pos += len + 1;
+		}
+
+		scratch.count = count;
+		return (after < 0) ? pos + 1 : after;
+	}
+
+	/**
+	 * @return true if the name last parsed is a name in the knock
+	 *   domain, with at least one label before it
 	 */
-	public void checkPacket(Packet inPacket) {
-
-		if (inPacket instanceof UDPPacket) {
-			byte[] dnsdata = ((UDPPacket)inPacket).getData();
-
-			int transactionID = ArrayHelper.extractInteger(dnsdata, 0, 2);
-			int flags         = ArrayHelper.extractInteger(dnsdata, 2, 2);
-			int questions     = ArrayHelper.extractInteger(dnsdata, 4, 2);
-			int answers       = ArrayHelper.extractInteger(dnsdata, 6, 2);
-			int authorities   = ArrayHelper.extractInteger(dnsdata, 8, 2);
-			int additionalrrs = ArrayHelper.extractInteger(dnsdata, 10, 2);
-		
-			int querytype = -1;
-			int queryclass = -1;
-
-			int pos = 12;
-			int chunks = 0;
-			String domainname = "";
-			for (int x = 0; x < questions; x++) {
-				int cnt = ArrayHelper.extractInteger(dnsdata, pos++, 1);
-			
-				while(cnt != 0) {
-					byte[] namechunk = new byte[cnt];
-					for (int y = 0; y < cnt; y++) {
-						namechunk[y] = dnsdata[y+pos];
-					}
-					pos+=cnt;
-
-					if (chunks == 0) {
-						domainname = new String(namechunk);
-					} else {
-						domainname = domainname.concat("."+new String(namechunk));
-					}
-
-					chunks++;
-
-					cnt = ArrayHelper.extractInteger(dnsdata, pos++, 1);
-				}
-				
-				querytype =  ArrayHelper.extractInteger(dnsdata, pos, 2);
-				pos += 2;
-				queryclass = ArrayHelper.extractInteger(dnsdata, pos, 2);
-				pos+=2;
-
-				/* XXX do some better checking here... we should
-				 * verify that this is a proper query in some way! XXX
-				 */
-				if (domainname.endsWith(knockDomain)) {
-					String otpString = (domainname.split("\\."))[0];
-					otpString = otpString.replaceAll("_", " ");
-					checkReadable(otpString, inPacket);
-				}
+	private boolean inKnockDomain(byte[] data, Scratch scratch) {
+		byte[][] domain = domainLabels;
+		int skip = scratch.count - domain.length;
+		if (skip < 1)
+			return false;
+
+		for (int x = 0; x < domain.length; x++) {
+			int offset = scratch.labels[skip + x];
+			byte[] label = domain[x];
+			if ((data[offset - 1] & 0xff) != label.length)
+				return false;
+			for (int y = 0; y < label.length; y++) {
+				int c = data[offset + y];
+				if (c >= 'A' && c <= 'Z')
+					c += 'a' - 'A';
+				if (c != label[y])
+					return false;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Decode a label as a one time password, reading _'s as spaces,
+	 * and check it
+	 *
+	 * @param data   buffer holding the DNS message
+	 * @param offset offset of the label in data
+	 */
+	private void checkLabel(byte[] data, int offset, PacketView packet, Scratch scratch) {
+		int length = data[offset - 1] & 0xff;
+		if (length < MIN_OTP_PAYLOAD || length > MAX_OTP_PAYLOAD)
+			return;
+
+		byte[] otp = scratch.otp;
+		for (int x = 0; x < length; x++) {
+			byte b = data[offset + x];
+			otp[x] = (b == '_') ? (byte)' ' : b;
+		}
+		if (MDC.decodeOTP(otp, 0, length, scratch.decoded))
+			checkDecoded(scratch.decoded[0], packet);
 	}
 
 	/**
@@ -137,11 +276,14 @@ public class DNSKnock extends UDP_OTP_Knock {
 	 *
 	 * @return return a DNSKnockDescriptor based on this knock.
 	 */
-	public KnockDescriptor getKnockDescriptor() {
-		return new DNSKnockDescriptor(firstOTP, nextOTP, 
-									  successAction.getRuleset(),
-									  badSourceAction.getRuleset(),
-									  replayAction.getRuleset(), rulename,
-									  algo, knockDomain, oldKeys);
+	public synchronized KnockDescriptor getKnockDescriptor() {
+		DNSKnockDescriptor desc = new DNSKnockDescriptor(MDC.longToFolded(firstOTP),
+														 MDC.longToFolded(nextOTP),
+														 successAction.getRuleset(),
+														 badSourceAction.getRuleset(),
+														 replayAction.getRuleset(), rulename,
+														 algo, knockDomain, oldKeys);
+		desc.setLookAhead(lookAhead);
+		return addValidSources(desc);
 	}
 }
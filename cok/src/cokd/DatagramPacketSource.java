@@ -0,0 +1,316 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import cokshare.SimpleSyslogger;
+
+/**
+ * <code>PacketSource</code> which serves one-time-password knocks off
+ * ordinary UDP sockets rather than through capture.  A non-blocking
+ * <code>DatagramChannel</code> is bound on the port of every
+ * UDP_OTP_Knock, all under one <code>Selector</code>, and payloads
+ * are read into a single reused direct buffer and handed to the
+ * knocks through a <code>PacketView</code>, just as captured packets
+ * are.  This
+ * needs neither jpcap nor promiscuous capture (though ports below
+ * 1024 still need root to bind), and nothing is decoded beyond the
+ * payload.
+ * <p>
+ * Only UDP_OTP_Knocks can be served this way.  Port sequence knocks
+ * need to see SYNs to closed ports and DNS knocks need the whole
+ * query, so both are left to capture.  The filter handed to
+ * <code>setFilter()</code> is not used as such, it is taken as the
+ * signal that the knocks changed and the sockets are rebound to
+ * match.
+ */
+class DatagramPacketSource implements PacketSource {
+
+	/**
+	 * Receive buffer size.  Anything which fills the buffer is longer
+	 * than any password and is thrown away.
+	 */
+	protected static final int BUFFER_SIZE = UDP_OTP_Knock.MAX_OTP_PAYLOAD + 1;
+
+	/** Handlers to hand datagrams to, replaced (never modified) on change */
+	protected volatile PacketHandler[] handlers = new PacketHandler[0];
+
+	/** selector all of the bound channels are registered with */
+	protected Selector selector;
+	/** bound channels, keyed by Integer port */
+	protected HashMap bindings = new HashMap();
+
+	/** the one buffer every datagram is read into */
+	protected ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/** the payload copied out of buffer for the knocks */
+	protected byte[] payload = new byte[BUFFER_SIZE];
+	/** view over payload handed to the knocks */
+	protected PacketView view = new PacketView();
+
+	/** set when the knocks changed and the channels need rebinding */
+	protected volatile boolean portsChanged = true;
+	/** set once close() has been called */
+	protected volatile boolean closed = false;
+
+	/** number of datagrams read */
+	protected volatile long receivedCount = 0;
+	/** number of datagrams too short or too long to be a password, or not IPv4 */
+	protected volatile long rejectedCount = 0;
+
+	/**
+	 * A channel bound on a knock port, attached to its selection key
+	 */
+	private static class Binding {
+		DatagramChannel channel;
+		int port;
+		/** address the channel is bound to, 0 for the wildcard
+		 *  address, so the address a datagram arrived on is unknown */
+		int address;
+	}
+
+	public String getName() { return "udp sockets"; }
+
+	public void open() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Note that the knocks changed, the capture loop rebinds the
+	 * channels before it next selects
+	 *
+	 * @param filter ignored
+	 */
+	public void setFilter(String filter) {
+		portsChanged = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * Only PacketHandlers can be handed datagrams, anything else is
+	 * ignored
+	 *
+	 * @param listener the PacketHandler to add
+	 */
+	public synchronized void addFrameListener(FrameListener listener) {
+		if (!(listener instanceof PacketHandler)) {
+			SimpleSyslogger.syslog("DEBUG (DatagramPacketSource): only a PacketHandler may listen on sockets");
+			return;
+		}
+
+		PacketHandler[] newHandlers = new PacketHandler[handlers.length + 1];
+		System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+		newHandlers[handlers.length] = (PacketHandler)listener;
+		handlers = newHandlers;
+		setFilter(null);
+	}
+
+	public synchronized void removeFrameListener(FrameListener listener) {
+		Vector kept = new Vector(Arrays.asList(handlers));
+		kept.remove(listener);
+		handlers = (PacketHandler[])kept.toArray(new PacketHandler[kept.size()]);
+		setFilter(null);
+	}
+
+	/**
+	 * Select on the bound channels, draining each ready one, until
+	 * closed
+	 *
+	 * @throws IOException if selection fails
+	 */
+	public void capture() throws IOException {
+		if (selector == null)
+			throw new IOException("Sockets have not been opened!");
+
+		try {
+			while (!closed) {
+				if (portsChanged) {
+					portsChanged = false;
+					rebind();
+				}
+
+				selector.select();
+
+				Iterator it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = (SelectionKey)it.next();
+					it.remove();
+					if (key.isValid() && key.isReadable())
+						drain((Binding)key.attachment());
+				}
+			}
+		} finally {
+			for (Iterator it = bindings.values().iterator(); it.hasNext(); )
+				((Binding)it.next()).channel.close();
+			bindings.clear();
+			selector.close();
+		}
+	}
+
+	/**
+	 * Read every queued datagram off a channel and hand the ones
+	 * which could hold a password to the handlers
+	 *
+	 * @param binding the ready channel
+	 */
+	private void drain(Binding binding) throws IOException {
+		while (true) {
+			buffer.clear();
+			SocketAddress from = binding.channel.receive(buffer);
+			if (from == null)
+				break;
+
+			receivedCount++;
+			int length = buffer.position();
+			if (length < UDP_OTP_Knock.MIN_OTP_PAYLOAD || length >= BUFFER_SIZE) {
+				rejectedCount++;
+				continue;
+			}
+
+			buffer.flip();
+			buffer.get(payload, 0, length);
+
+			InetSocketAddress source = (InetSocketAddress)from;
+			if (!(source.getAddress() instanceof Inet4Address)) {
+				rejectedCount++;
+				continue;
+			}
+
+			view.wrapDatagram(payload, length, toInt(source.getAddress()), source.getPort(),
+							  binding.address, binding.port);
+			PacketHandler[] curHandlers = handlers;
+			for (int x = 0; x < curHandlers.length; x++)
+				curHandlers[x].serialViewArrived(view);
+		}
+	}
+
+	/**
+	 * Bind a channel on every port a UDP_OTP_Knock is listening on,
+	 * and close the channels on ports which no longer have one
+	 */
+	private void rebind() {
+		TreeSet wanted = new TreeSet();
+		int unserved = 0;
+
+		PacketHandler[] curHandlers = handlers;
+		for (int x = 0; x < curHandlers.length; x++) {
+			KnockTable table = curHandlers[x].getKnockTable();
+			for (int port = 0; port <= 0xffff; port++) {
+				if (table.getTCPKnocks(port) != null)
+					unserved++;
+
+				Knock[] knocks = table.getUDPKnocks(port);
+				if (knocks == null)
+					continue;
+				for (int y = 0; y < knocks.length; y++) {
+					if (knocks[y] instanceof DNSKnock)
+						unserved++;
+					else if (knocks[y] instanceof UDP_OTP_Knock)
+						wanted.add(new Integer(port));
+				}
+			}
+		}
+
+		for (Iterator it = bindings.keySet().iterator(); it.hasNext(); ) {
+			Integer port = (Integer)it.next();
+			if (!wanted.contains(port)) {
+				Binding binding = (Binding)bindings.get(port);
+				try {
+					binding.channel.close();
+				} catch (IOException e) {}
+				it.remove();
+				SimpleSyslogger.syslog("Closed socket on udp port " + port);
+			}
+		}
+
+		for (Iterator it = wanted.iterator(); it.hasNext(); ) {
+			Integer port = (Integer)it.next();
+			if (bindings.containsKey(port))
+				continue;
+
+			Binding binding = new Binding();
+			binding.port = port.intValue();
+			try {
+				binding.channel = DatagramChannel.open();
+				binding.channel.configureBlocking(false);
+				binding.channel.socket().bind(new InetSocketAddress(binding.port));
+				binding.address = toInt(binding.channel.socket().getLocalAddress());
+				binding.channel.register(selector, SelectionKey.OP_READ, binding);
+				bindings.put(port, binding);
+				SimpleSyslogger.syslog("Listening on udp port " + port);
+			} catch (IOException e) {
+				SimpleSyslogger.syslog("DEBUG (DatagramPacketSource): could not bind udp port " + port + ": " + e.getMessage());
+				if (binding.channel != null) {
+					try {
+						binding.channel.close();
+					} catch (IOException f) {}
+				}
+			}
+		}
+
+		if (unserved > 0)
+			SimpleSyslogger.syslog(unserved + " port sequence or DNS knock port(s) can not be served from sockets, they need capture");
+	}
+
+	/**
+	 * @param addr an address
+	 *
+	 * @return the address as an int if it is IPv4, 0 otherwise
+	 */
+	private static int toInt(InetAddress addr) {
+		if (!(addr instanceof Inet4Address))
+			return 0;
+		byte[] octets = addr.getAddress();
+		return ((octets[0] & 0xff) << 24) | ((octets[1] & 0xff) << 16) |
+			((octets[2] & 0xff) << 8) | (octets[3] & 0xff);
+	}
+
+	public void close() {
+		closed = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	public long getReceivedCount() { return receivedCount; }
+
+	/**
+	 * @return the number of datagrams thrown away for being the wrong
+	 *   size to hold a password
+	 */
+	public long getDroppedCount() { return rejectedCount; }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+import java.io.*;
+
+import net.sourceforge.jpcap.capture.*;
+import net.sourceforge.jpcap.net.*;
+
+import cokshare.SimpleSyslogger;
+
+/**
+ * <code>PacketSource</code> which captures live from a network device
+ * through jpcap (and thus libpcap).  This requires the jpcap JNI
+ * library and, on most systems, root.  Only jpcap's raw packet
+ * callback is used, so jpcap never decodes a packet itself.
+ */
+class JpcapPacketSource implements PacketSource {
+
+	protected static final int INFINITE = -1;
+	protected static final int PACKET_COUNT = INFINITE;
+
+	/** Device to capture on, found automatically if null */
+	protected String captureDevice;
+
+	/** The underlying jpcap capture object */
+	protected PacketCapture packetCapture;
+
+	/** link layer type of the open device */
+	protected int linkType;
+
+	/** RawListeners registered with jpcap, keyed by FrameListener */
+	protected HashMap rawListeners = new HashMap();
+
+	/**
+	 * Passes jpcap's raw packets on to a FrameListener
+	 */
+	private class RawListener implements RawPacketListener {
+		private FrameListener listener;
+
+		RawListener(FrameListener listener) { this.listener = listener; }
+
+		public void rawPacketArrived(RawPacket rawPacket) {
+			listener.frameArrived(linkType, rawPacket.getData());
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param captureDevice device to capture on, or null to have
+	 *   libpcap find one
+	 */
+	JpcapPacketSource(String captureDevice) {
+		this.captureDevice = captureDevice;
+		this.packetCapture = new PacketCapture();
+	}
+
+	public String getName() { return captureDevice; }
+
+	public void open() throws IOException {
+		if (captureDevice == null || captureDevice.length() == 0) {
+			SimpleSyslogger.syslog("Finding capture device... ");
+			try {
+				captureDevice = packetCapture.findDevice();
+				SimpleSyslogger.syslog("Found device: " + captureDevice);
+			} catch (CaptureDeviceNotFoundException e) {
+				throw new IOException("Could not find available device!");
+			}
+		} else {
+			SimpleSyslogger.syslog("Using specified capture device: " + captureDevice);
+		}
+
+		SimpleSyslogger.syslog("Attempting to Open " + captureDevice + "... ");
+		try {
+			packetCapture.open(captureDevice, true);
+			linkType = packetCapture.getLinkLayerType();
+			SimpleSyslogger.syslog("success!");
+		} catch (CaptureDeviceOpenException e) {
+			throw new IOException("Failed to open " + captureDevice + "!  Make sure you are root, and the device exists!\n\t" + e.getMessage());
+		}
+	}
+
+	public void setFilter(String filter) throws IOException {
+		try {
+			packetCapture.setFilter(filter, true);
+		} catch (InvalidFilterException e) {
+			throw new IOException("The filter string is invalid!" + e.getMessage());
+		}
+	}
+
+	public synchronized void addFrameListener(FrameListener listener) {
+		RawListener rawListener = new RawListener(listener);
+		rawListeners.put(listener, rawListener);
+		packetCapture.addRawPacketListener(rawListener);
+	}
+
+	public synchronized void removeFrameListener(FrameListener listener) {
+		RawListener rawListener = (RawListener)rawListeners.remove(listener);
+		if (rawListener != null)
+			packetCapture.removeRawPacketListener(rawListener);
+	}
+
+	public void capture() throws IOException {
+		try {
+			packetCapture.capture(PACKET_COUNT);
+		} catch (CapturePacketException e) {
+			throw new IOException("An error occurred during packet capture!" + e.getMessage());
+		}
+	}
+
+	public void close() {
+		packetCapture.close();
+	}
+
+	public long getReceivedCount() {
+		return packetCapture.getStatistics().getReceivedCount();
+	}
+
+	public long getDroppedCount() {
+		return packetCapture.getStatistics().getDroppedCount();
+	}
+}
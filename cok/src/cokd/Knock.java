@@ -34,26 +34,29 @@ package cokd;
 
 import java.util.*;
 
-import net.sourceforge.jpcap.net.*;
-
-import cokshare.KnockDescriptor;
-import cokshare.COKRuleset;
-import cokshare.CIDRBlock;
+import cokshare.*;
 
 /**
  * Class defining a knock which is meant to then trigger an event
  */
 public abstract class Knock {
 
-	/** Action to exec on success */
-	protected KnockAction successAction;
+	/** Action to exec on success, replaced by update() while packets
+	 *  are being checked */
+	protected volatile KnockAction successAction;
 
 	/** Action to execute when the source for a knock is invalid */
-	protected KnockAction badSourceAction;
+	protected volatile KnockAction badSourceAction;
 
 	/** Vector (of CIDRBlocks) which are valid sources for this knock */
 	HashSet validSourceAddrs;
 
+	/** validSourceAddrs as an array, so checking a source allocates nothing */
+	protected volatile CIDRBlock[] validSources;
+
+	/** Ports nothing is bound to */
+	protected static final int[] NO_PORTS = new int[0];
+
 	protected Knock(COKRuleset successRules, COKRuleset badSourceRules,
 					HashSet validSourceAddrs) {
 		this.successAction = new KnockAction(successRules);
@@ -62,10 +65,76 @@ public abstract class Knock {
 			this.validSourceAddrs = new HashSet(validSourceAddrs);
 		else
 			this.validSourceAddrs = new HashSet();
+		this.validSources = toArray(this.validSourceAddrs);
 	}
 
-	/** method called to investigate the usefulness of a packet */
-	public abstract void checkPacket(Packet packet);
+	/**
+	 * Build the right kind of knock for a descriptor
+	 *
+	 * @param desc the descriptor describing the knock
+	 *
+	 * @return a new Knock, or null if the descriptor is of an unknown type
+	 */
+	public static Knock newKnock(KnockDescriptor desc) {
+		Knock rawKnock = null;
+		if (desc instanceof PortSequenceKnockDescriptor)
+			rawKnock = new PortSequenceKnock((PortSequenceKnockDescriptor)desc);
+		else if (desc instanceof DNSKnockDescriptor)
+			rawKnock = new DNSKnock((DNSKnockDescriptor)desc);
+		else if (desc instanceof UDP_OTP_KnockDescriptor)
+			rawKnock = new UDP_OTP_Knock((UDP_OTP_KnockDescriptor)desc);
+		else
+			SimpleSyslogger.syslog(" >>> Got unknown knock type "+desc.getKnockDesc());
+		return rawKnock;
+	}
+
+	/**
+	 * Take the actions and valid sources of an updated descriptor for
+	 * this knock, while leaving any in-flight knock state alone
+	 *
+	 * @param desc the updated descriptor, equal to this knock's own
+	 */
+	public void update(KnockDescriptor desc) {
+		successAction = new KnockAction(desc.getSuccessRules());
+		badSourceAction = new KnockAction(desc.getBadSourceRules());
+		if (desc.getValidSourceAddrs() != null) {
+			validSourceAddrs = new HashSet(desc.getValidSourceAddrs());
+			validSources = toArray(validSourceAddrs);
+		}
+	}
+
+	/**
+	 * Size any per-source state for the number of evaluation shards,
+	 * called once before the knock is bound.  Packets from one source
+	 * always arrive on the same shard (see PacketView.getShard()), so
+	 * state kept per shard needs no locking.  Knocks whose state is
+	 * shared by all sources must instead guard it themselves.
+	 *
+	 * @param shards the number of shards, at least 1
+	 */
+	public void setShards(int shards) {}
+
+	/**
+	 * Drop per-source state which has timed out, called now and then
+	 * from each shard's evaluation thread, never at the same time as
+	 * that shard is checking a packet
+	 *
+	 * @param shard the shard whose state to expire
+	 * @param now   the current MonotonicClock time
+	 */
+	public void expire(int shard, long now) {}
+
+	/** @return the TCP destination ports this knock listens on */
+	public int[] getTCPPorts() { return NO_PORTS; }
+
+	/** @return the UDP destination ports this knock listens on */
+	public int[] getUDPPorts() { return NO_PORTS; }
+
+	/**
+	 * method called to investigate the usefulness of a packet.  The
+	 * view is only valid for the duration of the call.
+	 */
+	public abstract void checkPacket(PacketView packet);
 
 	/** produce a hashcode to make things work right! */
 	public abstract int hashCode();
@@ -79,30 +148,41 @@ public abstract class Knock {
 	/** Get the associated bad source action */
 	public KnockAction getBadSourceAction() { return badSourceAction; }
 
+	/** Get the set of CIDRBlocks which are valid sources, empty means any */
+	public HashSet getValidSourceAddrs() { return validSourceAddrs; }
+
 	/**
-	 * Checks if a given IP address is valid for this knock
+	 * Copy this knock's valid sources into a descriptor built from it
 	 *
-	 * @param addr String containing IP address to check for validity
+	 * @param desc a descriptor describing this knock
 	 *
-	 * @throws IllegalArgumentException if addr is not a valid IP address
+	 * @return desc, for convenience
 	 */
-	protected boolean validSource(String addr) 
-		throws IllegalArgumentException {
-		
-		if (!CIDRBlock.isIP(addr))
-			throw new IllegalArgumentException("Invalid IP address: " + addr);
-		
-		boolean retval = false;
-		if (validSourceAddrs != null && validSourceAddrs.size() > 0) {
-			for (Iterator it = validSourceAddrs.iterator(); it.hasNext(); ) {
-				if (((CIDRBlock)it.next()).contains(addr)) {
-					retval = true;
-					break;
-				}
-			}
-		} else
-			retval = true;
-
-		return retval;
+	protected KnockDescriptor addValidSources(KnockDescriptor desc) {
+		for (Iterator it = validSourceAddrs.iterator(); it.hasNext(); )
+			desc.addValidSourceAddress((CIDRBlock)it.next());
+		return desc;
+	}
+
+	/**
+	 * Checks if a given IP address is valid for this knock
+	 *
+	 * @param addr IPv4 address to check for validity, most significant
+	 *   octet first
+	 */
+	protected boolean validSource(int addr) {
+		CIDRBlock[] blocks = validSources;
+		if (blocks.length == 0)
+			return true;
+
+		for (int x = 0; x < blocks.length; x++) {
+			if (blocks[x].contains(addr))
+				return true;
+		}
+		return false;
+	}
+
+	private static CIDRBlock[] toArray(HashSet blocks) {
+		return (CIDRBlock[])blocks.toArray(new CIDRBlock[blocks.size()]);
 	}
 }
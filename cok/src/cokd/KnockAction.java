@@ -35,8 +35,6 @@ package cokd;
 import java.util.*;
 import java.net.*;
 
-import net.sourceforge.jpcap.net.*;
-
 import cokshare.SimpleSyslogger;
 import cokshare.COKRuleset;
 
@@ -47,7 +45,7 @@ import cokshare.COKRuleset;
 public class KnockAction {
 
 	/** Ruleset to execute */
-	protected COKRuleset rules;
+	protected final COKRuleset rules;
 
 	/** Constructor */
 	public KnockAction(COKRuleset rules) {
@@ -61,7 +59,8 @@ public class KnockAction {
 	 * replace __SRC_IP__ with the source IP, __SRC_PORT__ with the 
 	 *    source port
 	 * replace __DEST_IP__ with destination IP, __DEST_PORT__ with the 
-	 *    destination port 
+	 *    destination port (__DEST_IP__ is left alone if the
+	 *    destination address is unknown, 0.0.0.0)
 	 * replace __KNOCKDESC__ with the knock description of the knock 
 	 *    calling this action
 	 *
@@ -73,7 +72,28 @@ public class KnockAction {
 	 *    Logging or Printing
 	 * </pre>
 	 */
-	public void execute(IPPacket packet, String knockdesc) {
+	public void execute(PacketView packet, String knockdesc) {
+		if (packet == null)
+			execute(null, -1, null, -1, knockdesc);
+		else
+			execute(packet.getSourceAddressString(), packet.getSourcePort(),
+					packet.getDestinationAddress() == 0 ? null :
+					packet.getDestinationAddressString(),
+					packet.getDestinationPort(), knockdesc);
+	}
+
+	/**
+	 * Executes the action given the addressing as strings.  The rules
+	 * are parsed exactly as for execute(PacketView, String).
+	 *
+	 * @param srcIP     source address, null if unknown
+	 * @param srcPort   source port, negative if unknown
+	 * @param destIP    destination address, null if unknown
+	 * @param destPort  destination port, negative if unknown
+	 * @param knockdesc knock description of the calling knock
+	 */
+	public void execute(String srcIP, int srcPort, String destIP, int destPort,
+						String knockdesc) {
 		Vector curRules = rules.getRules();
 		Runtime runtime = null;
 
@@ -84,20 +104,14 @@ public class KnockAction {
 
 			if (rule.length() > 0) {
 			
-				if (packet != null) {					
-					rule = rule.replaceAll("__SRC_IP__",    packet.getSourceAddress());
-					rule = rule.replaceAll("__DEST_IP__",   packet.getDestinationAddress());
-
-					if (packet instanceof UDPPacket)
-						rule = rule.replaceAll("__SRC_PORT__",  ""+((UDPPacket)packet).getSourcePort());
-					else if (packet instanceof TCPPacket)
-						rule = rule.replaceAll("__SRC_PORT__",  ""+((TCPPacket)packet).getSourcePort());
-
-					if (packet instanceof UDPPacket)
-						rule = rule.replaceAll("__DEST_PORT__", ""+((UDPPacket)packet).getDestinationPort());
-					else if (packet instanceof TCPPacket)
-						rule = rule.replaceAll("__DEST_PORT__", ""+((TCPPacket)packet).getDestinationPort());
-				}
+				if (srcIP != null)
+					rule = rule.replaceAll("__SRC_IP__",    srcIP);
+				if (destIP != null)
+					rule = rule.replaceAll("__DEST_IP__",   destIP);
+				if (srcPort >= 0)
+					rule = rule.replaceAll("__SRC_PORT__",  ""+srcPort);
+				if (destPort >= 0)
+					rule = rule.replaceAll("__DEST_PORT__", ""+destPort);
 
 				if (knockdesc != null) {
 					rule = rule.replaceAll("__KNOCKDESC__", knockdesc);
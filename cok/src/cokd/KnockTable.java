@@ -0,0 +1,187 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+/**
+ * Immutable dispatch table of knocks indexed by protocol and
+ * destination port.  A packet only ever has to be offered to the
+ * knocks bound to its destination port, so the cost of handling a
+ * packet does not grow with the number of knocks loaded.
+ * <p>
+ * Each protocol's 65536 ports are split into pages of 256 ports.
+ * Tables are never modified; <code>with()</code> and
+ * <code>without()</code> return a new table which shares every page
+ * the changed knock is not bound to, so an edit only copies the few
+ * pages it touches and can be swapped in atomically.
+ */
+class KnockTable {
+
+	/** bits of the port selecting the slot within a page */
+	protected static final int PAGE_BITS = 8;
+	/** ports per page */
+	protected static final int PAGE_SIZE = 1 << PAGE_BITS;
+	/** pages per protocol */
+	protected static final int PAGES = 65536 >> PAGE_BITS;
+
+	/** A table with nothing bound */
+	public static final KnockTable EMPTY = new KnockTable(new Knock[PAGES][][],
+														  new Knock[PAGES][][]);
+
+	/** pages of knocks bound to each TCP destination port, null when none */
+	protected final Knock[][][] tcpPages;
+	/** pages of knocks bound to each UDP destination port, null when none */
+	protected final Knock[][][] udpPages;
+
+	private KnockTable(Knock[][][] tcpPages, Knock[][][] udpPages) {
+		this.tcpPages = tcpPages;
+		this.udpPages = udpPages;
+	}
+
+	/**
+	 * @param port a TCP destination port
+	 *
+	 * @return the knocks bound to the port, or null if there are none
+	 */
+	public Knock[] getTCPKnocks(int port) { 
+		Knock[][] page = tcpPages[port >> PAGE_BITS];
+		return (page == null) ? null : page[port & (PAGE_SIZE - 1)];
+	}
+
+	/**
+	 * @param port a UDP destination port
+	 *
+	 * @return the knocks bound to the port, or null if there are none
+	 */
+	public Knock[] getUDPKnocks(int port) {
+		Knock[][] page = udpPages[port >> PAGE_BITS];
+		return (page == null) ? null : page[port & (PAGE_SIZE - 1)];
+	}
+
+	/**
+	 * Build a table which also has a knock bound to its ports
+	 *
+	 * @param knock the knock to bind
+	 *
+	 * @return a new table, this one is left untouched
+	 */
+	public KnockTable with(Knock knock) {
+		return new KnockTable(rebind(tcpPages, knock.getTCPPorts(), knock, true),
+							  rebind(udpPages, knock.getUDPPorts(), knock, true));
+	}
+
+	/**
+	 * Build a table which no longer has a knock bound to its ports
+	 *
+	 * @param knock the knock to unbind
+	 *
+	 * @return a new table, this one is left untouched
+	 */
+	public KnockTable without(Knock knock) {
+		return new KnockTable(rebind(tcpPages, knock.getTCPPorts(), knock, false),
+							  rebind(udpPages, knock.getUDPPorts(), knock, false));
+	}
+
+	/**
+	 * Copy the pages a knock's ports live on and bind or unbind the
+	 * knock on the copies
+	 *
+	 * @param pages the pages to start from
+	 * @param ports ports the knock listens on
+	 * @param knock the knock
+	 * @param bind  true to bind the knock, false to unbind it
+	 *
+	 * @return the new pages, or pages itself if ports is empty
+	 */
+	private static Knock[][][] rebind(Knock[][][] pages, int[] ports,
+									  Knock knock, boolean bind) {
+		if (ports.length == 0)
+			return pages;
+
+		Knock[][][] newPages = pages.clone();
+		for (int x = 0; x < ports.length; x++) {
+			int port = ports[x];
+			if (port < 0 || port > 65535)
+				continue;
+
+			int pg = port >> PAGE_BITS;
+			if (newPages[pg] == null)
+				newPages[pg] = new Knock[PAGE_SIZE][];
+			else if (newPages[pg] == pages[pg])
+				newPages[pg] = pages[pg].clone();
+
+			Knock[][] page = newPages[pg];
+			int slot = port & (PAGE_SIZE - 1);
+			page[slot] = bind ? append(page[slot], knock) : remove(page[slot], knock);
+		}
+		return newPages;
+	}
+
+	/**
+	 * @return knocks with knock added at the end, unless it is already there
+	 */
+	private static Knock[] append(Knock[] knocks, Knock knock) {
+		if (knocks == null)
+			return new Knock[] { knock };
+
+		for (int x = 0; x < knocks.length; x++)
+			if (knocks[x] == knock)
+				return knocks;
+
+		Knock[] grown = new Knock[knocks.length + 1];
+		System.arraycopy(knocks, 0, grown, 0, knocks.length);
+		grown[knocks.length] = knock;
+		return grown;
+	}
+
+	/**
+	 * @return knocks without knock, or null if nothing is left
+	 */
+	private static Knock[] remove(Knock[] knocks, Knock knock) {
+		if (knocks == null)
+			return null;
+
+		int idx = -1;
+		for (int x = 0; x < knocks.length; x++)
+			if (knocks[x] == knock)
+				idx = x;
+		if (idx < 0)
+			return knocks;
+		if (knocks.length == 1)
+			return null;
+
+		Knock[] shrunk = new Knock[knocks.length - 1];
+		System.arraycopy(knocks, 0, shrunk, 0, idx);
+		System.arraycopy(knocks, idx + 1, shrunk, idx, knocks.length - idx - 1);
+		return shrunk;
+	}
+}
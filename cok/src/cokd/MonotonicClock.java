@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+/**
+ * Coarse monotonic clock for the packet path.  A daemon thread reads
+ * System.nanoTime() every <code>RESOLUTION</code> milliseconds and
+ * publishes the result, so reading the time while evaluating a packet
+ * is a single volatile load, and is never thrown off by the wall
+ * clock being stepped.
+ * <p>
+ * Times are milliseconds since the class was loaded, so they are
+ * never negative and fit comfortably in 48 bits.
+ */
+class MonotonicClock {
+
+	/** how often the time is published, in milliseconds */
+	public static final long RESOLUTION = 10;
+
+	/** System.nanoTime() when the class was loaded */
+	private static final long base = System.nanoTime();
+
+	/** the time last published */
+	private static volatile long now = 0;
+
+	static {
+		Thread ticker = new Thread("COKd clock") {
+				public void run() {
+					while (true) {
+						now = read();
+						try {
+							Thread.sleep(RESOLUTION);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			};
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	private MonotonicClock() {}
+
+	/**
+	 * @return the time last published, in milliseconds, at most
+	 *   RESOLUTION behind read()
+	 */
+	public static long now() { return now; }
+
+	/** @return the time right now, in milliseconds */
+	public static long read() {
+		return (System.nanoTime() - base) / 1000000;
+	}
+}
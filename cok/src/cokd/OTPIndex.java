@@ -0,0 +1,182 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+/**
+ * Open addressed hash index from 64 bit one-time-password values to
+ * the objects (knocks) holding them.  Keys are primitive longs, so
+ * looking a value up allocates nothing.  One key may map to several
+ * objects; every entry for a key sits in the same probe run, and
+ * <code>find()</code> walks them in turn:
+ * <pre>
+ *   for (int slot = index.find(key, -1); slot >= 0; slot = index.find(key, slot))
+ *       ... index.valueAt(slot) ...
+ * </pre>
+ * Not thread safe, callers hold their own lock, and must not change
+ * the index while walking it.
+ */
+class OTPIndex {
+
+	/** smallest table, a power of 2 */
+	private static final int MIN_CAPACITY = 16;
+
+	/** keys of the entries, meaningless where values[] is null */
+	private long[] keys;
+	/** values of the entries, null marks an empty slot */
+	private Object[] values;
+	/** number of entries */
+	private int size;
+
+	OTPIndex() {
+		keys = new long[MIN_CAPACITY];
+		values = new Object[MIN_CAPACITY];
+	}
+
+	/** @return the number of entries */
+	public int size() { return size; }
+
+	/**
+	 * Find the next entry for a key
+	 *
+	 * @param key   the value to look up
+	 * @param after slot returned by the previous call, or -1 to start
+	 *
+	 * @return the slot of the next entry for key, or -1 if there are
+	 *   no more
+	 */
+	public int find(long key, int after) {
+		int mask = values.length - 1;
+		int slot = (after < 0) ? slot(key, mask) : ((after + 1) & mask);
+		for (; values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key)
+				return slot;
+		}
+		return -1;
+	}
+
+	/** @return the value of the entry in a slot returned by find() */
+	public Object valueAt(int slot) { return values[slot]; }
+
+	/**
+	 * Add an entry, unless the key already maps to value
+	 *
+	 * @param key   the one-time-password value
+	 * @param value the object holding it
+	 */
+	public void put(long key, Object value) {
+		for (int slot = find(key, -1); slot >= 0; slot = find(key, slot))
+			if (values[slot] == value)
+				return;
+
+		if ((size + 1) * 4 > values.length * 3)
+			resize(values.length * 2);
+		insert(key, value);
+		size++;
+	}
+
+	/**
+	 * Remove the entry mapping key to value
+	 *
+	 * @param key   the one-time-password value
+	 * @param value the object holding it
+	 *
+	 * @return true if there was such an entry
+	 */
+	public boolean remove(long key, Object value) {
+		int slot = find(key, -1);
+		while (slot >= 0 && values[slot] != value)
+			slot = find(key, slot);
+		if (slot < 0)
+			return false;
+
+		// shift later members of the probe run back over the hole, so
+		// a run is never broken by an empty slot
+		int mask = values.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+			int home = slot(keys[next], mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		values[hole] = null;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Remove every entry mapping to a value
+	 *
+	 * @param value the object whose entries should go
+	 */
+	public void removeAll(Object value) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length];
+		values = new Object[oldValues.length];
+		size = 0;
+		for (int x = 0; x < oldValues.length; x++) {
+			if (oldValues[x] != null && oldValues[x] != value) {
+				insert(oldKeys[x], oldValues[x]);
+				size++;
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		for (int x = 0; x < oldValues.length; x++)
+			if (oldValues[x] != null)
+				insert(oldKeys[x], oldValues[x]);
+	}
+
+	/** store an entry in the first free slot of its probe run */
+	private void insert(long key, Object value) {
+		int mask = values.length - 1;
+		int slot = slot(key, mask);
+		while (values[slot] != null)
+			slot = (slot + 1) & mask;
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	/** @return the home slot for a key */
+	private static int slot(long key, int mask) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h >>> 32) & mask;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+import java.util.*;
+import java.security.*;
+
+import cokshare.COKRuleset;
+import cokshare.KnockDescriptor;
+import cokshare.MDC;
+import cokshare.SimpleSyslogger;
+
+/**
+ * All of the <code>UDP_OTP_Knock</code>s bound to one port with one
+ * hash algorithm, checked together.  A payload is decoded and hashed
+ * once, however many users share the port, and the folded hash is
+ * looked up in an index keyed by each member's current
+ * one-time-password.  A second index, keyed by every password a
+ * member has already used, spots replays the same way.
+ * <p>
+ * The indexes and the members' password state are only changed
+ * holding the group's monitor; decoding and hashing happen outside
+ * it.  A member's own monitor is only ever taken inside the group's.
+ * <p>
+ * Groups are owned by a <code>PacketHandler</code> and bound in its
+ * dispatch table in place of their members.  A group has no
+ * descriptor of its own.
+ * <p>
+ * Members with a look-ahead accept passwords further down their
+ * list.  Future passwords are preimages of the current one, so they
+ * cannot be worked out ahead of time; instead a candidate's hash
+ * chain is stepped, at most as far as the widest member's window,
+ * and each step is one lookup in the same index, whatever the
+ * number of members.  A direct match costs no extra hashes.
+ * <p>
+ * Every change to the indexes or windows bumps a generation number,
+ * which lets each shard's <code>OTPMemo</code> drop a replayed
+ * payload without hashing it, as long as it was found to need
+ * nothing doing since the last change.
+ */
+class OTPKnockGroup extends Knock {
+
+	/** port every member is bound to */
+	protected final int port;
+	/** hash algorithm every member uses */
+	protected final String algo;
+
+	/** members' next one-time-passwords -> members */
+	protected OTPIndex current = new OTPIndex();
+	/** passwords members have already accepted -> members */
+	protected OTPIndex used = new OTPIndex();
+	/** every member */
+	protected HashSet members = new HashSet();
+	/** the largest look-ahead of any member */
+	protected volatile int window;
+	/** bumped, holding the monitor, whenever either index or window changes */
+	protected volatile long generation = 0;
+	/** recently checked passwords per evaluation shard */
+	protected OTPMemo[] memos = new OTPMemo[] { new OTPMemo() };
+
+	/** packets turned away before decoding */
+	protected RejectCounters rejects = new RejectCounters();
+
+	/** slot each evaluating thread decodes payloads into */
+	private static final ThreadLocal decodeBuffers = new ThreadLocal() {
+			protected Object initialValue() { return new long[1]; }
+		};
+
+	/**
+	 * Constructor...
+	 *
+	 * @param port port the members are bound to
+	 * @param algo hash algorithm the members use
+	 */
+	OTPKnockGroup(int port, String algo) {
+		super(new COKRuleset(), new COKRuleset(), null);
+		this.port = port;
+		this.algo = algo;
+	}
+
+	/**
+	 * Size the reject counters and make a memo for each shard
+	 *
+	 * @param shards the number of shards, at least 1
+	 */
+	public void setShards(int shards) {
+		rejects.setShards(shards);
+		OTPMemo[] newMemos = new OTPMemo[shards];
+		for (int x = 0; x < shards; x++)
+			newMemos[x] = new OTPMemo();
+		memos = newMemos;
+	}
+
+	/**
+	 * @param knock a one-time-password knock
+	 *
+	 * @return the key of the group the knock belongs in
+	 */
+	static String keyFor(UDP_OTP_Knock knock) {
+		return knock.port + "/" + knock.algo;
+	}
+
+	/**
+	 * Add a member, indexing its next password and the passwords it
+	 * has already used
+	 *
+	 * @param knock a knock with this group's port and algorithm
+	 */
+	public synchronized void add(UDP_OTP_Knock knock) {
+		generation++;
+		members.add(knock);
+		refreshWindow();
+		synchronized (knock) {
+			current.put(knock.nextOTP, knock);
+			for (Iterator it = knock.oldKeys.iterator(); it.hasNext(); ) {
+				try {
+					used.put(MDC.readableToLong((String)it.next()), knock);
+				} catch (IllegalArgumentException e) {
+					// not a password we could ever be sent again
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a member
+	 *
+	 * @param knock a knock previously added
+	 */
+	public synchronized void remove(UDP_OTP_Knock knock) {
+		generation++;
+		synchronized (knock) {
+			current.remove(knock.nextOTP, knock);
+		}
+		used.removeAll(knock);
+		members.remove(knock);
+		refreshWindow();
+	}
+
+	/**
+	 * Work out the widest look-ahead again, after adding or removing
+	 * a member or updating one's descriptor
+	 */
+	public synchronized void refreshWindow() {
+		int widest = 0;
+		for (Iterator it = members.iterator(); it.hasNext(); )
+			widest = Math.max(widest, ((UDP_OTP_Knock)it.next()).lookAhead);
+		window = widest;
+		generation++;
+	}
+
+	/** @return true if the group has no members left */
+	public synchronized boolean isEmpty() { return current.size() == 0; }
+
+	/** @return the port the members are bound to */
+	public int[] getUDPPorts() { return new int[] { port }; }
+
+	/** @return the counts of packets turned away before decoding */
+	RejectCounters getRejectCounters() { return rejects; }
+
+	/** @return the memo of each shard */
+	OTPMemo[] getMemos() { return memos; }
+
+	/**
+	 * @return the calling thread's digester for the group's algorithm
+	 *
+	 * @throws NoSuchAlgorithmException if the algorithm is unknown
+	 */
+	protected MessageDigest getDigester() throws NoSuchAlgorithmException {
+		return MDC.getDigester(algo);
+	}
+
+	/**
+	 * Decode a payload in place, hash it once, and <code>verify()</code>
+	 * it.  The payload may be six words, hex or binary; payloads of
+	 * the wrong length or shape are counted and dropped first.
+	 * Nothing is allocated unless it decodes.
+	 *
+	 * @param packet should be a UDP packet from COKd
+	 */
+	public void checkPacket(PacketView packet) {
+		if (!packet.isUDP())
+			return;
+		int length = packet.getPayloadLength();
+		if (length < UDP_OTP_Knock.MIN_OTP_PAYLOAD || length > UDP_OTP_Knock.MAX_OTP_PAYLOAD) {
+			rejects.reject(packet.getShard(), RejectCounters.LENGTH);
+			return;
+		}
+
+		byte[] data = packet.getData();
+		int offset = packet.getPayloadOffset();
+		if (!MDC.otpShaped(data, offset, length)) {
+			rejects.reject(packet.getShard(), RejectCounters.SHAPE);
+			return;
+		}
+		long[] decoded = (long[])decodeBuffers.get();
+		if (!MDC.decodeOTP(data, offset, length, decoded))
+			return;
+		long password = decoded[0];
+
+		OTPMemo memo = memos[packet.getShard()];
+		int known = memo.lookup(password, generation, decoded);
+		if (known == OTPMemo.QUIET)
+			return;
+
+		boolean hashed = false;
+		long folded = 0;
+		if (known == OTPMemo.FOLDED) {
+			folded = decoded[0];
+			hashed = true;
+		} else {
+			try {
+				folded = MDC.hashAndFold(algo, getDigester(), password);
+				hashed = true;
+			} catch (NoSuchAlgorithmException e) {
+				SimpleSyslogger.syslog("DEBUG (OTPKnockGroup): " + e.getMessage());
+			}
+		}
+		long quiet = verify(password, folded, hashed, packet);
+		if (hashed)
+			memo.remember(password, folded, quiet);
+	}
+
+	/**
+	 * Hand a candidate to any member expecting it (success or bad
+	 * source), possibly after skipping passwords within its
+	 * look-ahead, or which has already used it (replay)
+	 *
+	 * @param password the decoded candidate
+	 * @param folded   the folded hash of password
+	 * @param hashed   false if hashing failed, so only replays are checked
+	 * @param packet   the packet the candidate came in
+	 *
+	 * @return the generation at which the candidate was found to need
+	 *   nothing doing, or -1 if something was done or the state
+	 *   changed while checking
+	 */
+	long verify(long password, long folded, boolean hashed, PacketView packet) {
+		// members and the actions they chose, in pairs
+		Vector fired = null;
+		long checked = -1;
+		boolean quiet = true;
+		int steps = hashed ? window : 0;
+		long[] chain = UDP_OTP_Knock.chainBuffer(steps + 1);
+		chain[0] = folded;
+
+		for (int skipped = 0; ; skipped++) {
+			boolean found = false;
+			synchronized (this) {
+				if (checked == -1)
+					checked = generation;
+				else if (checked != generation)
+					quiet = false;
+
+				Vector matched = null;
+				if (hashed) {
+					for (int slot = current.find(chain[skipped], -1); slot >= 0;
+						 slot = current.find(chain[skipped], slot)) {
+						UDP_OTP_Knock knock = (UDP_OTP_Knock)current.valueAt(slot);
+						if (knock.lookAhead < skipped)
+							continue;
+						if (matched == null)
+							matched = new Vector();
+						matched.add(knock);
+					}
+				}
+
+				if (skipped == 0) {
+					for (int slot = used.find(password, -1); slot >= 0;
+						 slot = used.find(password, slot)) {
+						UDP_OTP_Knock knock = (UDP_OTP_Knock)used.valueAt(slot);
+						if (matched != null && matched.contains(knock))
+							continue;
+						if (fired == null)
+							fired = new Vector();
+						fired.add(knock);
+						fired.add(knock.replayAction);
+					}
+				}
+
+				if (matched != null) {
+					found = true;
+					generation++;
+					for (int x = 0; x < matched.size(); x++) {
+						UDP_OTP_Knock knock = (UDP_OTP_Knock)matched.get(x);
+						KnockAction action = knock.getBadSourceAction();
+						if (knock.accept(password, packet, chain, skipped)) {
+							action = knock.getSuccessAction();
+							current.remove(chain[skipped], knock);
+							current.put(password, knock);
+							used.put(password, knock);
+							for (int y = 0; y < skipped; y++)
+								used.put(chain[y], knock);
+						}
+						if (fired == null)
+							fired = new Vector();
+						fired.add(knock);
+						fired.add(action);
+					}
+				}
+			}
+
+			// step the chain outside the monitor, only as far as needed
+			if (found || skipped >= steps)
+				break;
+			try {
+				chain[skipped + 1] = MDC.hashAndFold(algo, getDigester(), chain[skipped]);
+			} catch (NoSuchAlgorithmException e) {
+				break;
+			}
+		}
+
+		if (fired == null)
+			return quiet ? checked : -1;
+
+		for (int x = 0; x < fired.size(); x += 2) {
+			Knock knock = (Knock)fired.get(x);
+			((KnockAction)fired.get(x + 1)).execute(packet,
+				knock.getKnockDescriptor().getKnockDesc());
+		}
+		return -1;
+	}
+
+	/** produce a hashcode from the port and algorithm */
+	public int hashCode() { return port ^ algo.hashCode(); }
+
+	/**
+	 * A group is not a knock of its own, its members each have a
+	 * descriptor
+	 *
+	 * @return null
+	 */
+	public KnockDescriptor getKnockDescriptor() { return null; }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+/**
+ * Small direct-mapped memo of recently checked one-time-passwords,
+ * so a payload replayed at a high rate is not hashed over and over.
+ * Each entry remembers a decoded password, its folded hash, and
+ * whether checking it found nothing to do (no member expecting it
+ * and none having used it) as of a given state generation of the
+ * owner.  While the owner's generation is unchanged such a password
+ * can be dropped on sight; once it has changed only the hash is
+ * reused.  The hash never goes stale, since it depends on nothing
+ * but the password.
+ * <p>
+ * Not thread safe, owners keep one memo per evaluation shard.  The
+ * counters are read racily by other threads.
+ */
+class OTPMemo {
+
+	/** number of entries, a power of 2 */
+	public static final int SIZE = 256;
+
+	/** lookup() found nothing */
+	public static final int MISS = 0;
+	/** lookup() found the password's folded hash */
+	public static final int FOLDED = 1;
+	/** lookup() found the password needs nothing doing */
+	public static final int QUIET = 2;
+
+	/** passwords of the entries */
+	private final long[] passwords = new long[SIZE];
+	/** folded hashes of the passwords */
+	private final long[] folds = new long[SIZE];
+	/** generation each password was found quiet at, -1 if it was not */
+	private final long[] quiet = new long[SIZE];
+	/** which entries are in use */
+	private final boolean[] filled = new boolean[SIZE];
+
+	/** lookups made */
+	private long lookups = 0;
+	/** lookups which saved a hash */
+	private long foldHits = 0;
+	/** lookups which saved the whole check */
+	private long quietHits = 0;
+
+	/**
+	 * @return the entry a password maps to
+	 */
+	private static int slotFor(long password) {
+		return (int)((password * 0x9e3779b97f4a7c15L) >>> 32) & (SIZE - 1);
+	}
+
+	/**
+	 * Look a password up
+	 *
+	 * @param password   the decoded password
+	 * @param generation the owner's current state generation
+	 * @param folded     folded[0] is set to the password's folded
+	 *   hash on a FOLDED answer
+	 *
+	 * @return QUIET if the password needed nothing doing at this
+	 *   generation, FOLDED if only its hash is known, MISS otherwise
+	 */
+	public int lookup(long password, long generation, long[] folded) {
+		lookups++;
+		int slot = slotFor(password);
+		if (!filled[slot] || passwords[slot] != password)
+			return MISS;
+
+		if (quiet[slot] == generation) {
+			quietHits++;
+			return QUIET;
+		}
+		foldHits++;
+		folded[0] = folds[slot];
+		return FOLDED;
+	}
+
+	/**
+	 * Remember a checked password, replacing whatever shared its entry
+	 *
+	 * @param password   the decoded password
+	 * @param folded     its folded hash
+	 * @param generation the generation it was found quiet at, or -1
+	 */
+	public void remember(long password, long folded, long generation) {
+		int slot = slotFor(password);
+		passwords[slot] = password;
+		folds[slot] = folded;
+		quiet[slot] = generation;
+		filled[slot] = true;
+	}
+
+	/** @return lookups made */
+	public long getLookups() { return lookups; }
+
+	/** @return lookups which saved hashing the password */
+	public long getFoldHits() { return foldHits; }
+
+	/** @return lookups which saved checking the password at all */
+	public long getQuietHits() { return quietHits; }
+}
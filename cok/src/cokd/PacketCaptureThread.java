@@ -0,0 +1,312 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+import java.io.*;
+
+import cokshare.*;
+
+/**
+ * Thread in which the packet capturing occurs!  Packets are pulled
+ * from one or more <code>PacketSource</code>s, each captured on a
+ * thread of its own, and handed to a single shared
+ * <code>PacketHandler</code>, either through a
+ * <code>PacketEvaluator</code> when queueing is enabled or directly
+ * on the capture threads.  Every source gets the same filter, and
+ * one-time-password state and sequence progress are shared by all of
+ * them.
+ */
+class PacketCaptureThread extends Thread {
+
+	protected String pcapFilter = "";
+
+	protected PacketSource[] packetSources;
+	protected PacketHandler packetHandler;
+	protected PacketEvaluator packetEvaluator;
+
+	/** listener each source was given, so it can be taken away again */
+	protected FrameListener[] listeners;
+
+	/** ring size for the evaluation stage, 0 evaluates on the capture threads */
+	protected int queueSize;
+	/** PacketRing drop policy for the evaluation stage */
+	protected int dropPolicy;
+	/** number of evaluation shards, only used when queueing */
+	protected int shards;
+
+	/** which packet sources are open and can take filters */
+	protected boolean[] sourceOpen;
+
+	/** handler filter version the current filter was built from */
+	protected int filterVersion = -1;
+
+	/**
+	 * Capture thread for a single packet source
+	 */
+	private class SourceThread extends Thread {
+		private int source;
+
+		SourceThread(int source) {
+			super("COKd capture on " + packetSources[source].getName());
+			this.source = source;
+		}
+
+		public void run() {
+			beginCapture(source);
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param knockdescs    knock descriptors to listen for
+	 * @param packetSources where packets come from
+	 * @param queueSize     number of packets queued per source between
+	 *   capture and evaluation, 0 to evaluate on the capture threads
+	 * @param dropPolicy    PacketRing drop policy used when a queue is full
+	 * @param shards        number of threads evaluation is sharded over
+	 *   by source address, only used when queueing
+	 * @param sequenceLimit most sources to keep port-sequence progress
+	 *   for at once
+	 */
+	PacketCaptureThread(HashSet knockdescs, PacketSource[] packetSources,
+						int queueSize, int dropPolicy, int shards,
+						int sequenceLimit) {
+		this.packetSources = packetSources;
+		this.queueSize = queueSize;
+		this.dropPolicy = dropPolicy;
+		this.shards = (queueSize > 0 && shards > 1) ? shards : 1;
+		this.packetHandler = new PacketHandler(knockdescs, this.shards,
+											   sequenceLimit);
+		this.sourceOpen = new boolean[packetSources.length];
+		this.listeners = new FrameListener[packetSources.length];
+	}
+
+	/**
+	 * Start the evaluator and a capture thread per source, and wait
+	 * for all of the sources to finish
+	 */
+	public void run() {
+		if (queueSize > 0) {
+			packetEvaluator = new PacketEvaluator(packetHandler, packetSources.length,
+												  shards, queueSize, dropPolicy);
+			packetEvaluator.start();
+		} else {
+			packetHandler.startExpiring();
+		}
+
+		for (int x = 0; x < packetSources.length; x++) {
+			if (packetEvaluator != null)
+				listeners[x] = packetEvaluator.getListener(x);
+			else
+				listeners[x] = packetHandler;
+		}
+
+		SourceThread[] threads = new SourceThread[packetSources.length];
+		for (int x = 0; x < threads.length; x++) {
+			threads[x] = new SourceThread(x);
+			threads[x].start();
+		}
+
+		for (int x = 0; x < threads.length; x++) {
+			try {
+				threads[x].join();
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/** @return the descriptors of the live knocks */
+	public HashSet getKnockDescriptors() {
+		return packetHandler.getKnockDescriptors();
+	}
+
+	/**
+	 * Set a knock on the live handler, without disturbing the other
+	 * knocks or the capture, then refresh the filter
+	 *
+	 * @param knockdesc descriptor of the knock to set
+	 *
+	 * @return a COKManager RULE_ constant as from PacketHandler.setKnock
+	 */
+	public int setKnock(KnockDescriptor knockdesc) {
+		int retval = packetHandler.setKnock(knockdesc);
+		refreshFilter();
+		return retval;
+	}
+
+	/**
+	 * Remove a knock from the live handler, then refresh the filter
+	 *
+	 * @param knockdesc descriptor of the knock to remove
+	 *
+	 * @return a COKManager RULE_ constant as from PacketHandler.removeKnock
+	 */
+	public int removeKnock(KnockDescriptor knockdesc) {
+		int retval = packetHandler.removeKnock(knockdesc);
+		refreshFilter();
+		return retval;
+	}
+
+	/**
+	 * Actually begin the capturing process on one of the sources.
+	 *
+	 * @param source index of the source to capture from
+	 */
+	private void beginCapture(int source) {
+		PacketSource packetSource = packetSources[source];
+		try {
+			packetSource.open();
+		} catch (IOException e) {
+			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): " + e.getMessage());
+			return;
+		}
+
+		synchronized (this) {
+			sourceOpen[source] = true;
+			if (pcapFilter.length() > 0)
+				applyFilter(source);
+			refreshFilter();
+		}
+
+		SimpleSyslogger.syslog("Adding packet listener on " + packetSource.getName() + "... ");
+		packetSource.addFrameListener(listeners[source]);
+		
+		SimpleSyslogger.syslog("Beginning packet capture on " + packetSource.getName() + "... ");
+		try {
+			packetSource.capture();
+		} catch (IOException e) {
+			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:beginCapture): " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Rebuild the pcap filter from the live knocks and set it on the
+	 * open sources.  Nothing is recompiled unless the knocks were
+	 * edited, and nothing is reapplied unless the resulting filter
+	 * actually differs.
+	 */
+	private synchronized void refreshFilter() {
+		int version = packetHandler.getFilterVersion();
+		if (version == filterVersion)
+			return;
+
+		String newFilter = packetHandler.buildFilter();
+		filterVersion = version;
+		if (newFilter.equals(pcapFilter))
+			return;
+		pcapFilter = newFilter;
+
+		for (int x = 0; x < packetSources.length; x++) {
+			if (sourceOpen[x])
+				applyFilter(x);
+		}
+	}
+
+	/**
+	 * Set the current filter on one of the sources
+	 *
+	 * @param source index of the source
+	 */
+	private void applyFilter(int source) {
+		PacketSource packetSource = packetSources[source];
+		SimpleSyslogger.syslog("Setting filter on " + packetSource.getName() + "... ["+pcapFilter+"]");
+		try {
+			packetSource.setFilter(pcapFilter);
+			SimpleSyslogger.syslog("success!");
+		} catch (IOException e) {
+			SimpleSyslogger.syslog("DEBUG (PacketCaptureThread:applyFilter): Failed!  " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop packet capture by removing all listeners and closing the
+	 * packet sources
+	 */
+	public void stopCapture() {
+		for (int x = 0; x < packetSources.length; x++) {
+			if (listeners[x] != null)
+				packetSources[x].removeFrameListener(listeners[x]);
+		}
+		if (packetEvaluator != null)
+			packetEvaluator.halt();
+		packetHandler.stopExpiring();
+
+		String[] stats = getStatistics();
+		for (int x = 0; x < stats.length; x++)
+			SimpleSyslogger.syslog(stats[x]);
+
+		for (int x = 0; x < packetSources.length; x++)
+			packetSources[x].close();
+	}
+
+	/**
+	 * @return a summary line of the capture and queue counters for
+	 *   each source, followed by the total evaluated if queueing, the
+	 *   payloads OTP knocks rejected before decoding, how well their
+	 *   memos are doing, and the port-sequence progress kept
+	 */
+	public String[] getStatistics() {
+		int lines = packetSources.length + (packetEvaluator != null ? 1 : 0) + 3;
+		String[] stats = new String[lines];
+		for (int x = 0; x < packetSources.length; x++) {
+			PacketSource packetSource = packetSources[x];
+			stats[x] = "Capture on " + packetSource.getName() + ": received " +
+				packetSource.getReceivedCount() + ", dropped " + 
+				packetSource.getDroppedCount();
+			if (packetEvaluator != null)
+				stats[x] += "; " + packetEvaluator.getStatistics(x);
+		}
+		if (packetEvaluator != null) {
+			stats[lines - 4] = "Evaluated " + packetEvaluator.getEvaluatedCount() + " packets";
+			if (shards > 1) {
+				long[] counts = packetEvaluator.getShardCounts();
+				stats[lines - 4] += " (per shard:";
+				for (int x = 0; x < counts.length; x++)
+					stats[lines - 4] += " " + counts[x];
+				stats[lines - 4] += ")";
+			}
+		}
+		long[] rejected = packetHandler.getRejectedCounts();
+		stats[lines - 3] = "OTP knocks rejected " + rejected[0] + " payloads by length, " +
+			rejected[1] + " by shape";
+		long[] memo = packetHandler.getMemoCounts();
+		stats[lines - 2] = "OTP memo lookups " + memo[0] + ", hashes saved " + memo[1] +
+			", checks saved " + memo[2];
+		long[] sequence = packetHandler.getSequenceCounts();
+		stats[lines - 1] = "Port sequences in progress " + sequence[0] + "/" + sequence[2] +
+			" (high water " + sequence[1] + "), evicted " + sequence[3] +
+			", expired " + sequence[4];
+		return stats;
+	}
+}
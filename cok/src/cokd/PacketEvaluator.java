@@ -0,0 +1,269 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Evaluation stage which decouples packet capture from knock
+ * evaluation.  The capture callbacks only place frames on a
+ * <code>PacketRing</code>; separate worker threads take them off,
+ * point their <code>PacketView</code>s at them and hand those to the
+ * <code>PacketHandler</code>.  A slow action
+ * or a burst of traffic on a knock port therefore fills the ring
+ * (and drops according to its policy) rather than backing up libpcap.
+ * <p>
+ * Evaluation is split into shards, each with a worker thread of its
+ * own.  Capture callbacks route every frame to a shard by a hash of
+ * its source address, so all of the packets from one source are
+ * evaluated, in order, by the same worker, and per-source knock
+ * state (port sequence progress) belongs to exactly one shard.
+ * Every capture source has a ring per shard, so every ring still has
+ * exactly one producer and one consumer.
+ * <p>
+ * Workers also expire their shard's timed out knock state every
+ * <code>PacketHandler.EXPIRE_INTERVAL</code>, whether or not packets
+ * are arriving.
+ */
+class PacketEvaluator {
+
+	/** empty polls to spin through before yielding */
+	protected static final int SPIN_POLLS  = 100;
+	/** empty polls to yield through before parking */
+	protected static final int YIELD_POLLS = 200;
+	/** how long to park when the rings have stayed empty */
+	protected static final long PARK_NANOS = 100000;
+	/** most packets taken off one ring before moving to the next */
+	protected static final int BATCH = 64;
+
+	/** rings[source][shard], between a capture callback and a worker */
+	protected PacketRing[][] rings;
+
+	/** one ring listener per capture source, holding its link type */
+	protected RingListener[] listeners;
+
+	/** one worker per shard */
+	protected Shard[] shards;
+
+	/** handler doing the actual knock evaluation */
+	protected PacketHandler packetHandler;
+
+	/** set to stop the workers */
+	protected volatile boolean halted = false;
+
+	/**
+	 * Capture callback which just queues frames on the ring for the
+	 * frame's shard.  A source's link type never changes once it is
+	 * capturing, so it is noted here rather than queued with every
+	 * frame.
+	 */
+	private class RingListener implements FrameListener {
+		private PacketRing[] shardRings;
+		private volatile int linkType;
+		/** used only to find the source address, capture thread only */
+		private PacketView view = new PacketView();
+
+		RingListener(PacketRing[] shardRings) { this.shardRings = shardRings; }
+
+		public void frameArrived(int linkType, byte[] frame) {
+			if (this.linkType != linkType)
+				this.linkType = linkType;
+
+			int shard = 0;
+			if (shardRings.length > 1 && view.wrap(linkType, frame, frame.length))
+				shard = shardFor(view.getSourceAddress(), shardRings.length);
+			shardRings[shard].offer(frame);
+		}
+	}
+
+	/**
+	 * Worker evaluating the frames for one shard from every source
+	 */
+	private class Shard extends Thread {
+		private int shard;
+		private PacketView view = new PacketView();
+		/** number of packets evaluated (worker only, read racily) */
+		private long evaluatedCount = 0;
+
+		Shard(int shard) {
+			super("COKd packet evaluator " + shard);
+			setDaemon(true);
+			this.shard = shard;
+			view.setShard(shard);
+		}
+
+		/**
+		 * Take packets off this shard's rings and evaluate them until
+		 * halted
+		 */
+		public void run() {
+			int idle = 0;
+			long nextExpiry = 0;
+			while (!halted) {
+				long now = MonotonicClock.now();
+				if (now >= nextExpiry) {
+					packetHandler.expire(shard, now);
+					nextExpiry = now + PacketHandler.EXPIRE_INTERVAL;
+				}
+
+				int taken = 0;
+				for (int x = 0; x < rings.length; x++) {
+					PacketRing ring = rings[x][shard];
+					for (int y = 0; y < BATCH; y++) {
+						byte[] frame = (byte[])ring.poll();
+						if (frame == null)
+							break;
+						taken++;
+						if (view.wrap(listeners[x].linkType, frame, frame.length))
+							packetHandler.viewArrived(view);
+					}
+				}
+
+				if (taken > 0) {
+					idle = 0;
+					evaluatedCount += taken;
+				} else if (++idle < SPIN_POLLS) {
+					// spin, something is probably on its way
+				} else if (idle < YIELD_POLLS) {
+					Thread.yield();
+				} else {
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param packetHandler handler to evaluate packets with
+	 * @param sources       number of capture sources feeding the evaluator
+	 * @param shardCount    number of worker threads to shard evaluation over
+	 * @param size          number of packets each ring should hold
+	 * @param dropPolicy    PacketRing drop policy to use when full
+	 */
+	PacketEvaluator(PacketHandler packetHandler, int sources, int shardCount,
+					int size, int dropPolicy) {
+		this.packetHandler = packetHandler;
+		this.rings = new PacketRing[sources][shardCount];
+		this.listeners = new RingListener[sources];
+		for (int x = 0; x < sources; x++) {
+			for (int y = 0; y < shardCount; y++)
+				rings[x][y] = new PacketRing(size, dropPolicy);
+			listeners[x] = new RingListener(rings[x]);
+		}
+
+		this.shards = new Shard[shardCount];
+		for (int x = 0; x < shardCount; x++)
+			shards[x] = new Shard(x);
+	}
+
+	/**
+	 * Pick the shard for a source address.  The address is mixed
+	 * first so that sources differing only in their low octets still
+	 * spread over the shards.
+	 *
+	 * @param addr   IPv4 source address
+	 * @param shards number of shards
+	 *
+	 * @return the shard, 0 <= shard < shards
+	 */
+	static int shardFor(int addr, int shards) {
+		int h = addr * 0x9e3779b9;
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % shards;
+	}
+
+	/** Start the workers */
+	public void start() {
+		for (int x = 0; x < shards.length; x++)
+			shards[x].start();
+	}
+
+	/**
+	 * Get the listener a capture source should hand its packets to.
+	 * The listener is only ever to be called from that source's
+	 * capture thread.
+	 *
+	 * @param source index of the capture source
+	 *
+	 * @return a FrameListener queueing onto the source's rings
+	 */
+	public FrameListener getListener(int source) {
+		return listeners[source];
+	}
+
+	/**
+	 * Stop evaluating, any packets left on the rings are discarded
+	 */
+	public void halt() {
+		halted = true;
+	}
+
+	/**
+	 * @param source index of the capture source
+	 *
+	 * @return a one line summary of the source's ring counters,
+	 *   summed over the shards, for logging
+	 */
+	public String getStatistics(int source) {
+		PacketRing[] shardRings = rings[source];
+		long depth = 0, capacity = 0, enqueued = 0, dropped = 0, highWater = 0;
+		for (int x = 0; x < shardRings.length; x++) {
+			depth += shardRings[x].getDepth();
+			capacity += shardRings[x].getCapacity();
+			enqueued += shardRings[x].getEnqueuedCount();
+			dropped += shardRings[x].getDroppedCount();
+			highWater = Math.max(highWater, shardRings[x].getHighWater());
+		}
+		return "queue depth " + depth + "/" + capacity +
+			" (high water " + highWater + "), enqueued " +
+			enqueued + ", dropped " + dropped;
+	}
+
+	/** @return the number of packets evaluated by all of the shards */
+	public long getEvaluatedCount() {
+		long evaluated = 0;
+		for (int x = 0; x < shards.length; x++)
+			evaluated += shards[x].evaluatedCount;
+		return evaluated;
+	}
+
+	/** @return the number of packets each shard has evaluated */
+	public long[] getShardCounts() {
+		long[] counts = new long[shards.length];
+		for (int x = 0; x < shards.length; x++)
+			counts[x] = shards[x].evaluatedCount;
+		return counts;
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+
+import cokshare.*;
+
+/** 
+ * Class which handles incoming packets and does the right thing with
+ * them.  Packets are dispatched through a <code>KnockTable</code> so
+ * only the knocks bound to a packet's destination port ever see it.
+ * <p>
+ * The table is replaced, never modified, when knocks are set or
+ * removed.  Knocks which are not touched by an edit carry over into
+ * the new table with their state intact, and the packet path never
+ * waits on an edit.
+ * <p>
+ * When evaluation is sharded (see PacketEvaluator) several threads
+ * call <code>viewArrived()</code> at once, one per shard.  Knocks are
+ * told the number of shards before they are bound.
+ * <p>
+ * One-time-password knocks sharing a UDP port and hash algorithm are
+ * gathered into an <code>OTPKnockGroup</code>, so a payload is
+ * decoded and hashed once however many users knock on the port.
+ * Packets are dispatched through a second table where each group
+ * stands in for its members; the first table, of the knocks
+ * themselves, is the one capture filters and sockets are built from.
+ * Port-sequence knocks are all compiled into one
+ * <code>SequenceAutomaton</code>, bound the same way.
+ * <p>
+ * Knocks keeping per-source state are told to expire what has timed
+ * out through <code>expire()</code>, by each shard's evaluator.  When
+ * there is no evaluator, packets are evaluated on the threads which
+ * read them, taking turns on the serial lock, and a timer started
+ * with <code>startExpiring()</code> takes the same lock to expire
+ * state, whether or not packets are arriving.
+ */
+class PacketHandler implements FrameListener {
+
+	/** the knocks, indexed by protocol and destination port */
+	protected volatile KnockTable knockTable = KnockTable.EMPTY;
+
+	/** knockTable with OTPKnockGroups bound in place of their members */
+	protected volatile KnockTable dispatchTable = KnockTable.EMPTY;
+
+	/** groups of one-time-password knocks, keyed by OTPKnockGroup.keyFor() */
+	protected HashMap otpGroups = new HashMap();
+
+	/** every port-sequence knock, bound in dispatchTable while it has any */
+	protected SequenceAutomaton sequences;
+
+	/** every live knock, keyed by the descriptor it was built from */
+	protected HashMap knocks = new HashMap();
+
+	/** the values of knocks, replaced on every edit, for expire() */
+	protected volatile Knock[] liveKnocks = new Knock[0];
+
+	/** how often knock state is expired, in milliseconds */
+	public static final long EXPIRE_INTERVAL = 100;
+
+	/** held while evaluating a packet or expiring state when there
+	 *  is no evaluator */
+	protected final Object serialLock = new Object();
+
+	/** expires state when there is no evaluator, null until started */
+	protected Timer expiryTimer;
+
+	/** bumped whenever an edit may have changed the capture filter */
+	protected int filterVersion = 0;
+
+	/** view used for frames handed straight to frameArrived() */
+	protected PacketView view = new PacketView();
+
+	/** number of evaluation shards calling viewArrived() */
+	protected int shards;
+
+	/**
+	 * Constructor... builds the dispatch table for the knocks
+	 *
+	 * @param knockdescs knock descriptors to listen for
+	 * @param shards     number of evaluation shards which will call
+	 *   viewArrived() concurrently
+	 * @param sequenceLimit most sources to keep port-sequence progress
+	 *   for at once
+	 */
+	PacketHandler(HashSet knockdescs, int shards, int sequenceLimit) {
+		this.shards = shards;
+		sequences = new SequenceAutomaton(sequenceLimit);
+		sequences.setShards(shards);
+		for (Iterator it = knockdescs.iterator(); it.hasNext();)
+			setKnock((KnockDescriptor)it.next());
+	}
+
+	/**
+	 * Gather all of the active knock descriptors, and return them to
+	 * COKd's RMI thread, in an effort to synchronize state
+	 *
+	 * @return a Hashset containing the knock descriptors from all of
+	 *   the active knocks
+	 */
+	public synchronized HashSet getKnockDescriptors() {
+		HashSet knockdescs = new HashSet();
+
+		for (Iterator it = knocks.values().iterator(); it.hasNext(); )
+			knockdescs.add(((Knock)it.next()).getKnockDescriptor());
+	
+		return knockdescs;
+	}
+
+	/**
+	 * Set a knock.  If an equal knock is already live it takes the
+	 * new descriptor's actions and keeps its state, otherwise a new
+	 * knock is built and bound.
+	 *
+	 * @param desc descriptor of the knock to set
+	 *
+	 * @return COKManager.RULE_OVERRIDE if the knock was already live,
+	 *  COKManager.RULE_NEW if it was added, COKManager.RULE_ERROR if
+	 *  the descriptor could not be made into a knock
+	 */
+	public synchronized int setKnock(KnockDescriptor desc) {
+		Knock knock = (Knock)knocks.get(desc);
+		if (knock != null) {
+			knock.update(desc);
+			if (grouped(knock))
+				((OTPKnockGroup)otpGroups.get(OTPKnockGroup.keyFor((UDP_OTP_Knock)knock))).refreshWindow();
+			filterVersion++;
+			return COKManager.RULE_OVERRIDE;
+		}
+
+		knock = Knock.newKnock(desc);
+		if (knock == null)
+			return COKManager.RULE_ERROR;
+		knock.setShards(shards);
+
+		knocks.put(desc, knock);
+		liveKnocks = (Knock[])knocks.values().toArray(new Knock[knocks.size()]);
+		knockTable = knockTable.with(knock);
+		dispatchTable = bindDispatch(knock);
+		filterVersion++;
+		SimpleSyslogger.syslog(desc.getKnockDesc());
+		return COKManager.RULE_NEW;
+	}
+
+	/**
+	 * Remove a knock
+	 *
+	 * @param desc descriptor of the knock to remove
+	 *
+	 * @return COKManager.RULE_REMOVED if the knock was live,
+	 *   COKManager.RULE_ERROR otherwise
+	 */
+	public synchronized int removeKnock(KnockDescriptor desc) {
+		Knock knock = (Knock)knocks.remove(desc);
+		if (knock == null)
+			return COKManager.RULE_ERROR;
+
+		liveKnocks = (Knock[])knocks.values().toArray(new Knock[knocks.size()]);
+		knockTable = knockTable.without(knock);
+		dispatchTable = unbindDispatch(knock);
+		filterVersion++;
+		return COKManager.RULE_REMOVED;
+	}
+
+	/**
+	 * @return true if a knock is checked as part of an OTPKnockGroup
+	 */
+	private static boolean grouped(Knock knock) {
+		return knock instanceof UDP_OTP_Knock && !(knock instanceof DNSKnock);
+	}
+
+	/**
+	 * Bind a new knock for dispatch, adding it to its group if it
+	 * has one, and binding the group if it is new
+	 *
+	 * @return the new dispatch table
+	 */
+	private KnockTable bindDispatch(Knock knock) {
+		if (knock instanceof PortSequenceKnock) {
+			// the automaton's ports change with its members
+			KnockTable table = dispatchTable.without(sequences);
+			sequences.add((PortSequenceKnock)knock);
+			return table.with(sequences);
+		}
+		if (!grouped(knock))
+			return dispatchTable.with(knock);
+
+		UDP_OTP_Knock otpKnock = (UDP_OTP_Knock)knock;
+		String key = OTPKnockGroup.keyFor(otpKnock);
+		OTPKnockGroup group = (OTPKnockGroup)otpGroups.get(key);
+		if (group != null) {
+			group.add(otpKnock);
+			return dispatchTable;
+		}
+
+		group = new OTPKnockGroup(otpKnock.port, otpKnock.algo);
+		group.setShards(shards);
+		group.add(otpKnock);
+		otpGroups.put(key, group);
+		return dispatchTable.with(group);
+	}
+
+	/**
+	 * Unbind a removed knock from dispatch, unbinding its group once
+	 * it is empty
+	 *
+	 * @return the new dispatch table
+	 */
+	private KnockTable unbindDispatch(Knock knock) {
+		if (knock instanceof PortSequenceKnock) {
+			KnockTable table = dispatchTable.without(sequences);
+			sequences.remove((PortSequenceKnock)knock);
+			return sequences.isEmpty() ? table : table.with(sequences);
+		}
+		if (!grouped(knock))
+			return dispatchTable.without(knock);
+
+		UDP_OTP_Knock otpKnock = (UDP_OTP_Knock)knock;
+		String key = OTPKnockGroup.keyFor(otpKnock);
+		OTPKnockGroup group = (OTPKnockGroup)otpGroups.get(key);
+		if (group == null)
+			return dispatchTable;
+
+		group.remove(otpKnock);
+		if (!group.isEmpty())
+			return dispatchTable;
+
+		otpGroups.remove(key);
+		return dispatchTable.without(group);
+	}
+
+	/**
+	 * @return a number which changes whenever an edit may have changed
+	 *   the capture filter
+	 */
+	public synchronized int getFilterVersion() { return filterVersion; }
+
+	/**
+	 * @return the packets one-time-password knocks and their groups
+	 *   turned away before decoding, as { wrong length, wrong shape },
+	 *   counting only those still live
+	 */
+	public synchronized long[] getRejectedCounts() {
+		Vector counters = new Vector();
+		for (Iterator it = otpGroups.values().iterator(); it.hasNext(); )
+			counters.add(((OTPKnockGroup)it.next()).getRejectCounters());
+		for (Iterator it = knocks.values().iterator(); it.hasNext(); ) {
+			Knock knock = (Knock)it.next();
+			if (knock instanceof UDP_OTP_Knock && !grouped(knock))
+				counters.add(((UDP_OTP_Knock)knock).getRejectCounters());
+		}
+
+		long[] counts = new long[2];
+		for (int x = 0; x < counters.size(); x++) {
+			RejectCounters rejects = (RejectCounters)counters.get(x);
+			counts[0] += rejects.getCount(RejectCounters.LENGTH);
+			counts[1] += rejects.getCount(RejectCounters.SHAPE);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the use one-time-password knocks and their groups made
+	 *   of their memos, as { lookups, hashes saved, checks saved },
+	 *   counting only those still live
+	 */
+	public synchronized long[] getMemoCounts() {
+		Vector memos = new Vector();
+		for (Iterator it = otpGroups.values().iterator(); it.hasNext(); )
+			memos.addAll(Arrays.asList(((OTPKnockGroup)it.next()).getMemos()));
+		for (Iterator it = knocks.values().iterator(); it.hasNext(); ) {
+			Knock knock = (Knock)it.next();
+			if (knock instanceof UDP_OTP_Knock && !grouped(knock))
+				memos.addAll(Arrays.asList(((UDP_OTP_Knock)knock).getMemos()));
+		}
+
+		long[] counts = new long[3];
+		for (int x = 0; x < memos.size(); x++) {
+			OTPMemo memo = (OTPMemo)memos.get(x);
+			if (memo == null)
+				continue;
+			counts[0] += memo.getLookups();
+			counts[1] += memo.getFoldHits();
+			counts[2] += memo.getQuietHits();
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the sources part way through a port sequence, their
+	 *   high water mark, the limit on them, and the number evicted
+	 *   and expired, as { in progress, high water, limit, evicted,
+	 *   expired }
+	 */
+	public long[] getSequenceCounts() { return sequences.getCounts(); }
+
+	/**
+	 * @return a libpcap filter for the live knocks
+	 */
+	public synchronized String buildFilter() {
+		return PcapFilter.compile(knockTable);
+	}
+
+	/** @return the current dispatch table */
+	public KnockTable getKnockTable() { return knockTable; }
+
+	/**
+	 * Decode a frame and hand it to the knocks bound to its
+	 * destination port, as shard 0.  Capture threads calling this at
+	 * once take turns on the serial lock, since the view it decodes
+	 * into is shared.
+	 *
+	 * @param linkType jpcap link layer type of the frame
+	 * @param frame    the frame as captured
+	 */
+	public void frameArrived(int linkType, byte[] frame) {
+		synchronized (serialLock) {
+			if (view.wrap(linkType, frame, frame.length))
+				viewArrived(view);
+		}
+	}
+
+	/**
+	 * Hand a packet read with no evaluator, such as a datagram read
+	 * off a socket, to the knocks, as shard 0 and holding the serial
+	 * lock
+	 *
+	 * @param view a view of the packet
+	 */
+	public void serialViewArrived(PacketView view) {
+		synchronized (serialLock) {
+			viewArrived(view);
+		}
+	}
+
+	/**
+	 * Expire shard 0's state every EXPIRE_INTERVAL on a daemon timer,
+	 * holding the serial lock, for when there is no evaluator to do
+	 * it
+	 */
+	public synchronized void startExpiring() {
+		if (expiryTimer != null)
+			return;
+		expiryTimer = new Timer("COKd expiry", true);
+		expiryTimer.schedule(new TimerTask() {
+				public void run() {
+					synchronized (serialLock) {
+						expire(0, MonotonicClock.now());
+					}
+				}
+			}, EXPIRE_INTERVAL, EXPIRE_INTERVAL);
+	}
+
+	/** Stop the timer started by startExpiring() */
+	public synchronized void stopExpiring() {
+		if (expiryTimer != null)
+			expiryTimer.cancel();
+		expiryTimer = null;
+	}
+
+	/**
+	 * Have every knock drop a shard's state which has timed out.
+	 * Only the thread evaluating the shard may call this.
+	 *
+	 * @param shard the shard whose state to expire
+	 * @param now   the current MonotonicClock time
+	 */
+	public void expire(int shard, long now) {
+		Knock[] live = liveKnocks;
+		for (int x = 0; x < live.length; x++)
+			live[x].expire(shard, now);
+		sequences.expire(shard, now);
+	}
+
+	/**
+	 * Call the right knocks for an incoming packet
+	 *
+	 * @param view a view of the packet to check and hand off...
+	 */
+	public void viewArrived(PacketView view) {
+		KnockTable table = dispatchTable;
+		Knock[] bound = null;
+		if (view.isTCP())
+			bound = table.getTCPKnocks(view.getDestinationPort());
+		else if (view.isUDP())
+			bound = table.getUDPKnocks(view.getDestinationPort());
+
+		if (bound != null) {
+			for (int x = 0; x < bound.length; x++)
+				bound[x].checkPacket(view);
+		}
+	}
+
+}
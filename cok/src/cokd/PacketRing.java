@@ -0,0 +1,224 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded lock-free ring buffer handing packets from a single
+ * producer (a capture callback) to a single consumer (an evaluation
+ * worker).  Neither side ever takes a lock, and the producer never
+ * waits on the consumer unless it chooses to via
+ * <code>BLOCK</code>.
+ * <p>
+ * What happens when the ring is full is up to the drop policy:
+ * <code>DROP_NEWEST</code> refuses the incoming packet,
+ * <code>DROP_OLDEST</code> discards the oldest queued packet to make
+ * room, and <code>BLOCK</code> makes the producer wait for room
+ * (pushing the backlog into libpcap and the kernel instead).
+ * <p>
+ * A slot is emptied as its packet is taken, so the ring never keeps
+ * a packet reachable once the consumer has it.
+ */
+class PacketRing {
+
+	/** Refuse the incoming packet when the ring is full */
+	public static final int DROP_NEWEST = 0;
+	/** Throw away the oldest queued packet when the ring is full */
+	public static final int DROP_OLDEST = 1;
+	/** Wait for the consumer to make room when the ring is full */
+	public static final int BLOCK       = 2;
+
+	/** the slots, length is a power of two */
+	protected final AtomicReferenceArray slots;
+	/** slots.length() */
+	protected final int capacity;
+	/** capacity - 1 */
+	protected final int mask;
+	/** what to do when the ring is full */
+	protected final int dropPolicy;
+
+	/** next slot the consumer will take (written by the consumer, and by the producer when dropping the oldest) */
+	protected final AtomicLong head = new AtomicLong(0);
+	/** next slot the producer will fill (written only by the producer) */
+	protected final AtomicLong tail = new AtomicLong(0);
+
+	/** producer's possibly stale copy of head */
+	protected long headCache = 0;
+	/** consumer's possibly stale copy of tail */
+	protected long tailCache = 0;
+
+	/** packets accepted by the ring (producer only, read racily) */
+	protected long enqueuedCount = 0;
+	/** packets dropped because the ring was full (producer only, read racily) */
+	protected long droppedCount = 0;
+	/** deepest the ring has ever been (producer only, read racily) */
+	protected long highWater = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param size minimum number of packets the ring can hold, it is
+	 *   rounded up to a power of two
+	 * @param dropPolicy one of DROP_NEWEST, DROP_OLDEST or BLOCK
+	 *
+	 * @throws IllegalArgumentException if size is not positive or
+	 *   dropPolicy is unknown
+	 */
+	PacketRing(int size, int dropPolicy) 
+		throws IllegalArgumentException {
+
+		if (size <= 0 || size > (1 << 30))
+			throw new IllegalArgumentException("Invalid ring size " + size + "!");
+		if (dropPolicy != DROP_NEWEST && dropPolicy != DROP_OLDEST && dropPolicy != BLOCK)
+			throw new IllegalArgumentException("Invalid drop policy " + dropPolicy + "!");
+
+		int capacity = 1;
+		while (capacity < size)
+			capacity <<= 1;
+
+		this.slots = new AtomicReferenceArray(capacity);
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.dropPolicy = dropPolicy;
+	}
+
+	/**
+	 * Add a packet to the ring, called only from the producer thread.
+	 *
+	 * @param packet the packet to queue
+	 *
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	public boolean offer(Object packet) {
+		long curTail = tail.get();
+
+		if (curTail - headCache >= capacity) {
+			headCache = head.get();
+			while (curTail - headCache >= capacity) {
+				if (dropPolicy == DROP_NEWEST) {
+					droppedCount++;
+					return false;
+				} else if (dropPolicy == DROP_OLDEST) {
+					// the consumer may beat us to it, either way a slot frees up
+					if (head.compareAndSet(headCache, headCache + 1))
+						droppedCount++;
+				} else {
+					Thread.yield();
+				}
+				headCache = head.get();
+			}
+		}
+
+		slots.lazySet((int)curTail & mask, packet);
+		tail.lazySet(curTail + 1);
+		enqueuedCount++;
+
+		long depth = curTail + 1 - headCache;
+		if (depth > highWater) {
+			headCache = head.get();
+			depth = curTail + 1 - headCache;
+			if (depth > highWater)
+				highWater = depth;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take the oldest packet off the ring, called only from the
+	 * consumer thread.
+	 *
+	 * @return the oldest queued packet, or null if the ring is empty
+	 */
+	public Object poll() {
+		while (true) {
+			long curHead = head.get();
+			if (curHead >= tailCache) {
+				tailCache = tail.get();
+				if (curHead >= tailCache)
+					return null;
+			}
+
+			int slot = (int)curHead & mask;
+			Object packet = slots.get(slot);
+			// the producer only moves head when dropping the oldest packet
+			if (dropPolicy != DROP_OLDEST) {
+				// the producer can not refill the slot until head moves
+				slots.lazySet(slot, null);
+				head.lazySet(curHead + 1);
+				return packet;
+			} else if (head.compareAndSet(curHead, curHead + 1)) {
+				// once head has moved the producer may already have
+				// refilled the slot, only empty it if it has not
+				slots.compareAndSet(slot, packet, null);
+				return packet;
+			}
+		}
+	}
+
+	/** @return number of slots in the ring */
+	public int getCapacity() { return capacity; }
+
+	/** @return number of packets currently queued */
+	public long getDepth() { return Math.max(0, tail.get() - head.get()); }
+
+	/** @return number of packets ever queued */
+	public long getEnqueuedCount() { return enqueuedCount; }
+
+	/** @return number of packets dropped because the ring was full */
+	public long getDroppedCount() { return droppedCount; }
+
+	/** @return the deepest the ring has been */
+	public long getHighWater() { return highWater; }
+
+	/**
+	 * Parse a drop policy name as given on the command line
+	 *
+	 * @param name one of "newest", "oldest" or "block"
+	 *
+	 * @return the matching drop policy constant
+	 *
+	 * @throws IllegalArgumentException if name is not a drop policy
+	 */
+	public static int parseDropPolicy(String name) 
+		throws IllegalArgumentException {
+		if (name.equals("newest"))
+			return DROP_NEWEST;
+		else if (name.equals("oldest"))
+			return DROP_OLDEST;
+		else if (name.equals("block"))
+			return BLOCK;
+		throw new IllegalArgumentException("Unknown drop policy " + name + "!");
+	}
+}
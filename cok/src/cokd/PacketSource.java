@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.io.*;
+
+/**
+ * A source of packets for COKd.  The capture thread and packet
+ * handler only ever talk to a <code>PacketSource</code>, so whether
+ * the packets come from a live interface (via jpcap) or from a
+ * recorded libpcap capture file does not matter to the knocks.
+ *
+ * @see cokd.JpcapPacketSource
+ * @see cokd.PcapFilePacketSource
+ */
+interface PacketSource {
+
+	/**
+	 * A name for this source suitable for logging (a device name, a
+	 * file name, ...)
+	 *
+	 * @return the name of this source
+	 */
+	public String getName();
+
+	/**
+	 * Open the source so that packets may be captured from it.
+	 *
+	 * @throws IOException if the source could not be opened
+	 */
+	public void open() throws IOException;
+
+	/**
+	 * Set a libpcap filter expression on the source.  Sources which
+	 * are unable to filter may ignore the filter, the packet handler
+	 * only ever acts on packets destined for a bound knock anyway.
+	 *
+	 * @param filter a libpcap filter expression
+	 *
+	 * @throws IOException if the filter is invalid
+	 */
+	public void setFilter(String filter) throws IOException;
+
+	/**
+	 * Add a listener to be handed every captured frame
+	 *
+	 * @param listener the FrameListener to add
+	 */
+	public void addFrameListener(FrameListener listener);
+
+	/**
+	 * Remove a previously added listener
+	 *
+	 * @param listener the FrameListener to remove
+	 */
+	public void removeFrameListener(FrameListener listener);
+
+	/**
+	 * Capture packets and hand them to the listeners.  This blocks
+	 * until the source is exhausted or closed.
+	 *
+	 * @throws IOException if an error occurs while capturing
+	 */
+	public void capture() throws IOException;
+
+	/**
+	 * Stop capturing and release the source
+	 */
+	public void close();
+
+	/**
+	 * @return the number of packets this source has seen
+	 */
+	public long getReceivedCount();
+
+	/**
+	 * @return the number of packets this source knows were dropped
+	 * before they could be handed to a listener
+	 */
+	public long getDroppedCount();
+}
@@ -0,0 +1,246 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import net.sourceforge.jpcap.net.*;
+
+/**
+ * Reusable view over the headers of a captured frame.  Rather than
+ * building a Packet object graph (and formatting addresses into
+ * Strings) for every packet, a <code>PacketView</code> is pointed at
+ * the raw frame and decodes just what the knocks need: IPv4 addresses
+ * as ints, ports as ints, TCP flags, and the payload as an offset
+ * and length into the frame.  One view is kept per evaluating thread
+ * and rewrapped for each packet, so nothing is allocated.
+ * <p>
+ * A view only ever describes the frame it last wrapped; knocks must
+ * not hold on to it (or to its data) past the call they were given
+ * it in.  Strings are only made when an action actually fires.
+ */
+class PacketView {
+
+	/** IP protocol number for TCP */
+	public static final int TCP = 6;
+	/** IP protocol number for UDP */
+	public static final int UDP = 17;
+
+	/** TCP SYN flag */
+	public static final int TH_SYN = 0x02;
+	/** TCP ACK flag */
+	public static final int TH_ACK = 0x10;
+
+	/** DLT_LINUX_SLL, which jpcap has no name for */
+	protected static final int LINUX_SLL = 113;
+
+	/** frame (or datagram) this view is over */
+	protected byte[] data;
+
+	/** IP protocol, TCP or UDP, 0 if the frame was not understood */
+	protected int protocol;
+	protected int sourceAddress;
+	protected int destinationAddress;
+	protected int sourcePort;
+	protected int destinationPort;
+	/** TCP flags, 0 for UDP */
+	protected int tcpFlags;
+	protected int payloadOffset;
+	protected int payloadLength;
+
+	/** evaluation shard this view belongs to, see PacketEvaluator */
+	protected int shard = 0;
+
+	/**
+	 * Point the view at a captured frame and decode its headers.
+	 * Anything other than an unfragmented (or first fragment) IPv4
+	 * TCP or UDP packet is not understood.
+	 *
+	 * @param linkType jpcap link layer type of the frame
+	 * @param frame    the frame as captured
+	 * @param length   number of captured bytes in frame
+	 *
+	 * @return true if the frame is a TCP or UDP packet the view now
+	 *   describes, false otherwise
+	 */
+	public boolean wrap(int linkType, byte[] frame, int length) {
+		data = frame;
+		protocol = 0;
+
+		int ip;
+		switch (linkType) {
+		case LinkLayers.EN10MB:
+			if (length < 14)
+				return false;
+			int etherType = getShort(12);
+			ip = 14;
+			if (etherType == 0x8100 && length >= 18) {
+				etherType = getShort(16);
+				ip = 18;
+			}
+			if (etherType != 0x0800)
+				return false;
+			break;
+		case LinkLayers.NULL:
+			ip = 4;
+			break;
+		case LinkLayers.RAW:
+			ip = 0;
+			break;
+		case LINUX_SLL:
+			if (length < 16 || getShort(14) != 0x0800)
+				return false;
+			ip = 16;
+			break;
+		default:
+			return false;
+		}
+
+		if (length < ip + 20 || (frame[ip] & 0xf0) != 0x40)
+			return false;
+
+		int ipHeaderLength = (frame[ip] & 0x0f) << 2;
+		int ipLength = getShort(ip + 2);
+		if (ipHeaderLength < 20 || ipLength < ipHeaderLength)
+			return false;
+		if ((getShort(ip + 6) & 0x1fff) != 0)
+			return false;
+
+		int end = ip + ipLength;
+		if (end > length)
+			end = length;
+
+		int l4 = ip + ipHeaderLength;
+		int proto = frame[ip + 9] & 0xff;
+		if (proto == TCP) {
+			if (end < l4 + 20)
+				return false;
+			int tcpHeaderLength = (frame[l4 + 12] & 0xf0) >> 2;
+			if (tcpHeaderLength < 20 || end < l4 + tcpHeaderLength)
+				return false;
+			tcpFlags = frame[l4 + 13] & 0xff;
+			payloadOffset = l4 + tcpHeaderLength;
+		} else if (proto == UDP) {
+			if (end < l4 + 8)
+				return false;
+			tcpFlags = 0;
+			payloadOffset = l4 + 8;
+		} else
+			return false;
+
+		protocol = proto;
+		sourceAddress = getInt(ip + 12);
+		destinationAddress = getInt(ip + 16);
+		sourcePort = getShort(l4);
+		destinationPort = getShort(l4 + 2);
+		payloadLength = end - payloadOffset;
+		return true;
+	}
+
+	/**
+	 * Point the view at a UDP payload which was read off a socket,
+	 * where there are no headers to decode
+	 *
+	 * @param payload            buffer holding the payload
+	 * @param length             number of bytes of payload
+	 * @param sourceAddress      IPv4 source address
+	 * @param sourcePort         source port
+	 * @param destinationAddress IPv4 address the datagram arrived on,
+	 *   0 if unknown
+	 * @param destinationPort    port the datagram arrived on
+	 */
+	public void wrapDatagram(byte[] payload, int length, int sourceAddress, int sourcePort,
+							 int destinationAddress, int destinationPort) {
+		this.data = payload;
+		this.protocol = UDP;
+		this.sourceAddress = sourceAddress;
+		this.sourcePort = sourcePort;
+		this.destinationAddress = destinationAddress;
+		this.destinationPort = destinationPort;
+		this.tcpFlags = 0;
+		this.payloadOffset = 0;
+		this.payloadLength = length;
+	}
+
+	public boolean isTCP() { return protocol == TCP; }
+	public boolean isUDP() { return protocol == UDP; }
+
+	/** @return true for an initial SYN, that is SYN without ACK */
+	public boolean isInitialSyn() { return (tcpFlags & (TH_SYN | TH_ACK)) == TH_SYN; }
+
+	public int getSourceAddress() { return sourceAddress; }
+	public int getDestinationAddress() { return destinationAddress; }
+	public int getSourcePort() { return sourcePort; }
+	public int getDestinationPort() { return destinationPort; }
+	public int getTCPFlags() { return tcpFlags; }
+
+	/**
+	 * @return the evaluation shard of the thread using this view,
+	 *   knocks keep per-source state separately for each shard
+	 */
+	public int getShard() { return shard; }
+
+	/** @param shard the evaluation shard of the thread using this view */
+	public void setShard(int shard) { this.shard = shard; }
+
+	/** @return the buffer the payload lies in */
+	public byte[] getData() { return data; }
+	/** @return offset of the payload in getData() */
+	public int getPayloadOffset() { return payloadOffset; }
+	/** @return length of the payload */
+	public int getPayloadLength() { return payloadLength; }
+
+	/** @return the source address as a dotted quad, allocates */
+	public String getSourceAddressString() { return toDottedQuad(sourceAddress); }
+	/** @return the destination address as a dotted quad, allocates */
+	public String getDestinationAddressString() { return toDottedQuad(destinationAddress); }
+
+	/**
+	 * Format an IPv4 address
+	 *
+	 * @param addr address, most significant octet first
+	 *
+	 * @return the address as a dotted quad
+	 */
+	public static String toDottedQuad(int addr) {
+		return ((addr >>> 24) & 0xff) + "." + ((addr >>> 16) & 0xff) + "." +
+			((addr >>> 8) & 0xff) + "." + (addr & 0xff);
+	}
+
+	private int getShort(int pos) {
+		return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+	}
+
+	private int getInt(int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) |
+			((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import net.sourceforge.jpcap.net.*;
+
+import cokshare.SimpleSyslogger;
+
+/**
+ * <code>PacketSource</code> which replays a libpcap capture file
+ * (as written by tcpdump -w) through the normal packet handling path.
+ * The file is memory-mapped read only, and packets are replayed
+ * either as fast as possible or with the inter-packet timing which
+ * was recorded.  This needs neither root nor a live interface, which
+ * makes it useful for measuring knock throughput and for replaying
+ * recorded knock/noise traffic.
+ * <p>
+ * Filters are not applied to replayed packets, the packet handler
+ * ignores anything which is not destined for a bound knock anyway.
+ */
+class PcapFilePacketSource implements PacketSource {
+
+	/** libpcap magic, microsecond timestamps */
+	protected static final int PCAP_MAGIC       = 0xa1b2c3d4;
+	/** libpcap magic, nanosecond timestamps */
+	protected static final int PCAP_MAGIC_NSEC  = 0xa1b23c4d;
+	/** size of the libpcap file header */
+	protected static final int FILE_HEADER_LEN   = 24;
+	/** size of the libpcap per-record header */
+	protected static final int RECORD_HEADER_LEN = 16;
+	/** DLT_RAW as written into capture files */
+	protected static final int DLT_RAW = 101;
+
+	/** name of the file to replay */
+	protected String fileName;
+	/** replay at recorded timing rather than as fast as possible */
+	protected boolean timed;
+	/** number of times to replay the file */
+	protected int loops;
+
+	/** the mapped capture file */
+	protected MappedByteBuffer mappedFile;
+	/** link layer type of the file, in jpcap's terms */
+	protected int linkType;
+	/** timestamps in the file are nanoseconds rather than microseconds */
+	protected boolean nanoTimestamps;
+
+	/** Listeners to hand packets to, replaced (never modified) on change */
+	protected volatile FrameListener[] listeners = new FrameListener[0];
+
+	/** number of packets replayed */
+	protected volatile long receivedCount = 0;
+	/** set once close() has been called */
+	protected volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileName libpcap capture file to replay
+	 * @param timed    true to sleep between packets to reproduce the
+	 *   recorded timing, false to replay as fast as possible
+	 * @param loops    number of times to replay the whole file
+	 */
+	PcapFilePacketSource(String fileName, boolean timed, int loops) {
+		this.fileName = fileName;
+		this.timed = timed;
+		this.loops = loops;
+	}
+
+	public String getName() { return fileName; }
+
+	/**
+	 * Map the file and parse the libpcap file header
+	 *
+	 * @throws IOException if the file can not be read or is not a
+	 *   libpcap capture file
+	 */
+	public void open() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large to map!");
+			if (channel.size() < FILE_HEADER_LEN)
+				throw new IOException(fileName + " is too short to be a capture file!");
+			mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+
+		mappedFile.order(ByteOrder.BIG_ENDIAN);
+		int magic = mappedFile.getInt(0);
+		if (magic != PCAP_MAGIC && magic != PCAP_MAGIC_NSEC) {
+			mappedFile.order(ByteOrder.LITTLE_ENDIAN);
+			magic = mappedFile.getInt(0);
+		}
+
+		if (magic == PCAP_MAGIC)
+			nanoTimestamps = false;
+		else if (magic == PCAP_MAGIC_NSEC)
+			nanoTimestamps = true;
+		else
+			throw new IOException(fileName + " is not a libpcap capture file!");
+
+		linkType = mappedFile.getInt(20);
+		if (linkType == DLT_RAW)
+			linkType = LinkLayers.RAW;
+
+		SimpleSyslogger.syslog("Opened capture file " + fileName + " (" + mappedFile.capacity() + " bytes, link type " + linkType + ")");
+	}
+
+	/** Filters are not applied to replayed packets */
+	public void setFilter(String filter) {}
+
+	public synchronized void addFrameListener(FrameListener listener) {
+		FrameListener[] newListeners = new FrameListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length] = listener;
+		listeners = newListeners;
+	}
+
+	public synchronized void removeFrameListener(FrameListener listener) {
+		Vector kept = new Vector(Arrays.asList(listeners));
+		kept.remove(listener);
+		listeners = (FrameListener[])kept.toArray(new FrameListener[kept.size()]);
+	}
+
+	/**
+	 * Replay the file <code>loops</code> times, then log how many
+	 * packets per second were pushed through the listeners.
+	 *
+	 * @throws IOException if the file has not been opened
+	 */
+	public void capture() throws IOException {
+		if (mappedFile == null)
+			throw new IOException(fileName + " has not been opened!");
+
+		long start = System.currentTimeMillis();
+		for (int loop = 0; loop < loops && !closed; loop++)
+			replay();
+		long elapsed = System.currentTimeMillis() - start;
+
+		SimpleSyslogger.syslog("Replayed " + receivedCount + " packets from " + fileName + " in " + elapsed + " ms (" + (elapsed > 0 ? (receivedCount * 1000 / elapsed) : receivedCount) + " packets/sec)");
+	}
+
+	/**
+	 * Walk the records of the file once, handing each packet to the
+	 * listeners, each in a frame of its own as FrameListener promises
+	 */
+	private void replay() {
+		int pos = FILE_HEADER_LEN;
+		int limit = mappedFile.capacity();
+
+		long firstStamp = -1;
+		long replayStart = System.currentTimeMillis();
+
+		while (!closed && pos + RECORD_HEADER_LEN <= limit) {
+			long seconds  = mappedFile.getInt(pos) & 0xffffffffL;
+			long fraction = mappedFile.getInt(pos + 4) & 0xffffffffL;
+			int  caplen   = mappedFile.getInt(pos + 8);
+			pos += RECORD_HEADER_LEN;
+
+			if (caplen < 0 || pos + caplen > limit) {
+				SimpleSyslogger.syslog("Truncated record in " + fileName + " at offset " + (pos - RECORD_HEADER_LEN));
+				break;
+			}
+
+			if (timed) {
+				long stamp = seconds * 1000 + (nanoTimestamps ? fraction / 1000000 : fraction / 1000);
+				if (firstStamp < 0)
+					firstStamp = stamp;
+				long wait = (stamp - firstStamp) - (System.currentTimeMillis() - replayStart);
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {}
+				}
+			}
+
+			receivedCount++;
+			FrameListener[] curListeners = listeners;
+			for (int x = 0; x < curListeners.length; x++) {
+				byte[] frame = new byte[caplen];
+				mappedFile.position(pos);
+				mappedFile.get(frame);
+				curListeners[x].frameArrived(linkType, frame);
+			}
+			pos += caplen;
+		}
+	}
+
+	public void close() {
+		closed = true;
+	}
+
+	public long getReceivedCount() { return receivedCount; }
+
+	/** Nothing is ever dropped while replaying a file */
+	public long getDroppedCount() { return 0; }
+}
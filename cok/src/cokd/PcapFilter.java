@@ -0,0 +1,206 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+
+import cokshare.CIDRBlock;
+
+/**
+ * Compiles the knocks in a <code>KnockTable</code> into a compact
+ * libpcap filter expression, so the kernel drops as much junk as
+ * possible before it is ever copied up to COKd:
+ * <ul>
+ * <li>ports are walked in order and runs of consecutive ports are
+ *   folded into a single <code>portrange</code></li>
+ * <li>TCP only matches initial SYNs (SYN set, ACK clear), so ACKs and
+ *   established traffic never count towards a port sequence</li>
+ * <li>UDP one-time-password ports only match payloads whose length
+ *   could hold a knock</li>
+ * <li>where every knock on a port has the same valid source networks
+ *   (and none has a bad source action which needs to see the other
+ *   sources) only those networks are matched</li>
+ * </ul>
+ * Ports which need the same conditions share a single clause.
+ */
+class PcapFilter {
+
+	/** TCP flags byte, SYN and ACK bits, and just SYN */
+	protected static final String SYN_ONLY = "tcp[13] & 0x12 == 0x02";
+
+	/** UDP length field (which counts the 8 byte UDP header) */
+	protected static final String UDP_LENGTH = "udp[4:2]";
+	/** size of the UDP header counted in the length field */
+	protected static final int UDP_HEADER_LEN = 8;
+
+	/** Declare away */
+	private PcapFilter() {}
+
+	/**
+	 * Build a filter matching only packets the knocks in a table
+	 * could care about
+	 *
+	 * @param table the knocks to build a filter for
+	 *
+	 * @return a libpcap filter expression, empty if nothing is bound
+	 */
+	public static String compile(KnockTable table) {
+		// conditions -> ports needing them, in port order
+		Map tcpGroups = new LinkedHashMap();
+		Map udpGroups = new LinkedHashMap();
+
+		for (int port = 0; port < 65536; port++) {
+			Knock[] knocks = table.getTCPKnocks(port);
+			if (knocks != null)
+				group(tcpGroups, " and " + SYN_ONLY + sourceNets(knocks), port);
+
+			knocks = table.getUDPKnocks(port);
+			if (knocks != null)
+				group(udpGroups, payloadLength(knocks) + sourceNets(knocks), port);
+		}
+
+		StringBuffer filter = new StringBuffer();
+		appendGroups(filter, "tcp", tcpGroups);
+		appendGroups(filter, "udp", udpGroups);
+		return filter.toString();
+	}
+
+	/**
+	 * Add a port to the group of ports needing the same conditions
+	 */
+	private static void group(Map groups, String conditions, int port) {
+		BitSet ports = (BitSet)groups.get(conditions);
+		if (ports == null) {
+			ports = new BitSet();
+			groups.put(conditions, ports);
+		}
+		ports.set(port);
+	}
+
+	/**
+	 * Payload length conditions for a UDP port, DNS knocks are
+	 * wrapped in a query of any length so they get none
+	 *
+	 * @param knocks the knocks bound to the port
+	 *
+	 * @return " and ..." conditions, or an empty string
+	 */
+	private static String payloadLength(Knock[] knocks) {
+		for (int x = 0; x < knocks.length; x++)
+			if (!(knocks[x] instanceof UDP_OTP_Knock) || knocks[x] instanceof DNSKnock)
+				return "";
+
+		return " and " + UDP_LENGTH + " >= " + (UDP_HEADER_LEN + UDP_OTP_Knock.MIN_OTP_PAYLOAD) +
+			" and " + UDP_LENGTH + " <= " + (UDP_HEADER_LEN + UDP_OTP_Knock.MAX_OTP_PAYLOAD);
+	}
+
+	/**
+	 * Source network conditions for a port, only if every knock on
+	 * the port accepts exactly the same networks and has no bad
+	 * source action
+	 *
+	 * @param knocks the knocks bound to the port
+	 *
+	 * @return " and (src net ...)" conditions, or an empty string
+	 */
+	private static String sourceNets(Knock[] knocks) {
+		String nets = null;
+		for (int x = 0; x < knocks.length; x++) {
+			HashSet addrs = knocks[x].getValidSourceAddrs();
+			if (addrs == null || addrs.size() == 0 ||
+				knocks[x].getBadSourceAction().getRuleset().getRules().size() > 0)
+				return "";
+
+			TreeSet sorted = new TreeSet();
+			for (Iterator it = addrs.iterator(); it.hasNext(); )
+				sorted.add(((CIDRBlock)it.next()).toString());
+
+			StringBuffer clause = new StringBuffer(" and (");
+			for (Iterator it = sorted.iterator(); it.hasNext(); ) {
+				clause.append("src net ").append(it.next());
+				if (it.hasNext())
+					clause.append(" or ");
+			}
+			clause.append(')');
+
+			if (nets == null)
+				nets = clause.toString();
+			else if (!nets.equals(clause.toString()))
+				return "";
+		}
+		return (nets == null) ? "" : nets;
+	}
+
+	/**
+	 * Append one clause per group of ports for a protocol
+	 *
+	 * @param filter   the filter being built
+	 * @param protocol "tcp" or "udp"
+	 * @param groups   conditions -> BitSet of ports
+	 */
+	private static void appendGroups(StringBuffer filter, String protocol,
+									 Map groups) {
+		for (Iterator it = groups.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry group = (Map.Entry)it.next();
+
+			if (filter.length() > 0)
+				filter.append(" or ");
+			filter.append('(').append(protocol).append(" and (");
+			appendPorts(filter, (BitSet)group.getValue());
+			filter.append(')').append(group.getKey()).append(')');
+		}
+	}
+
+	/**
+	 * Append one term per run of consecutive ports
+	 *
+	 * @param filter the filter being built
+	 * @param ports  set bits are ports to capture
+	 */
+	private static void appendPorts(StringBuffer filter, BitSet ports) {
+		boolean first = true;
+		for (int low = ports.nextSetBit(0); low >= 0; ) {
+			int high = ports.nextClearBit(low) - 1;
+
+			if (!first)
+				filter.append(" or ");
+			first = false;
+			if (low == high)
+				filter.append("dst port ").append(low);
+			else
+				filter.append("dst portrange ").append(low).append('-').append(high);
+
+			low = ports.nextSetBit(high + 1);
+		}
+	}
+}
@@ -33,26 +33,33 @@
 package cokd;
 
 import java.util.*;
-import net.sourceforge.jpcap.net.*;
 
 import cokshare.KnockDescriptor;
 import cokshare.PortSequenceKnockDescriptor;
 
 /**
- * Class defining a knock which is meant to then trigger an event
+ * Class defining a knock which is meant to then trigger an event.
+ * <p>
+ * Every source address works through the sequence on its own, so a
+ * scan or other traffic on a sequence port can not disturb a real
+ * user's progress, and several users may knock at once.
+ * <p>
+ * The knock keeps no progress itself.  Every port-sequence knock is
+ * compiled into the one <code>SequenceAutomaton</code>, which is
+ * bound for dispatch in place of the knocks and fires their actions.
  */
 public class PortSequenceKnock extends Knock {
 
-	/** time when the first knock occurred */
-	protected long firstKnock = 0;
 	/** how long the knock is allowed to take */
 	protected long timeout;
 	/** number of ports in knock sequence */
 	protected int knockLength;
 	/** actual sequence of ports to be knocked */
 	protected Vector portSeq;
-	/** where in the knock sequence we are*/      
-	protected int seqIdx = 0;
+	/** the sequence as ints, for compiling */
+	protected int[] sequence;
+	/** distinct ports in the knock sequence */
+	protected int[] ports;
 
 	/**
 	 * Constructor
@@ -67,62 +74,26 @@ public class PortSequenceKnock extends Knock {
 		this.knockLength = desc.getPortSeq().size();
 		this.portSeq = desc.getPortSeq();
 		this.timeout = desc.getTimeout();
-	}
 
-	/**
-	 * Check an incoming packet to see if it is part of the current knock
-	 */
-	public void checkPacket(Packet packet) {
-		if (isAlive() && (packet instanceof TCPPacket)) {
-			if (((Integer)portSeq.get(seqIdx)).intValue() == ((TCPPacket)packet).getDestinationPort()) {
-				if (seqIdx == 0)
-					firstKnock = (new Date()).getTime();
-				seqIdx++;
-				//System.out.println("Got next knock sequence port ("+((TCPPacket)packet).getDestinationPort()+") Seq. Idx: " + seqIdx + "  Knock Len: " + knockLength);
-				if (isComplete()) {
-					if (validSource(((IPPacket)packet).getSourceAddress())) {
-						successAction.execute((IPPacket)packet,getKnockDescriptor().getKnockDesc());
-					} else {
-						badSourceAction.execute((IPPacket)packet,getKnockDescriptor().getKnockDesc());
-					}
+		this.sequence = new int[knockLength];
+		for (int x = 0; x < knockLength; x++)
+			this.sequence[x] = ((Integer)portSeq.get(x)).intValue();
 
-					reset();
-				}
-			}
-		}
-		else if (!isAlive()) {
-			//System.out.println("resetting in checkPacket (not alive!)");
-			reset();
-		}
+		TreeSet distinct = new TreeSet(portSeq);
+		this.ports = new int[distinct.size()];
+		int x = 0;
+		for (Iterator it = distinct.iterator(); it.hasNext(); )
+			this.ports[x++] = ((Integer)it.next()).intValue();
 	}
 
-	/**
-	 * We are done only if all the knocks have been found!
-	 */
-	public boolean isComplete() {
-		return seqIdx == knockLength;
-	}
+	/** @return the distinct ports in the knock sequence */
+	public int[] getTCPPorts() { return ports; }
 
 	/**
-	 * Start over!
+	 * Never called, packets are checked against every sequence at
+	 * once by the SequenceAutomaton
 	 */
-	public void reset() {
-		//System.out.println("sequence knock is reset!");
-		seqIdx = 0;
-		firstKnock = 0;
-	}
-
-	/**
-	 * Check to make sure that we've gotten at least the first packet
-	 * of the knock, and that we haven't timed out,  if we haven't gotten
-	 * the first packet then we can't have timed out, and we are alive,
-	 * if we have started, make sure we haven't timed out!
-	 */
-	public boolean isAlive() {
-		if (firstKnock != 0)
-			return ((new Date()).getTime() - firstKnock) < timeout;
-		else return true;
-	}
+	public void checkPacket(PacketView packet) {}
 
 	public int hashCode() {
 		int hashcode = 0;
@@ -136,9 +107,9 @@ public class PortSequenceKnock extends Knock {
 	}
 
 	public KnockDescriptor getKnockDescriptor() {
-		return new PortSequenceKnockDescriptor(portSeq, 
-											   successAction.getRuleset(), 
-											   badSourceAction.getRuleset(), 
-											   timeout);
+		return addValidSources(new PortSequenceKnockDescriptor(portSeq, 
+															   successAction.getRuleset(), 
+															   badSourceAction.getRuleset(), 
+															   timeout));
 	}
 }
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+/**
+ * Counts of packets a knock turned away on sight, before decoding
+ * them.  Each evaluation shard counts in its own cache line, so shards
+ * never write to the same counter and the counts need no locking;
+ * they are only read, racily, for statistics.
+ */
+class RejectCounters {
+
+	/** payload too short or too long to hold a password */
+	public static final int LENGTH = 0;
+	/** payload of the wrong characters or word count */
+	public static final int SHAPE = 1;
+
+	/** longs per shard, a cache line's worth */
+	private static final int STRIDE = 8;
+
+	/** the counters, STRIDE per shard */
+	private long[] counts = new long[STRIDE];
+
+	/**
+	 * Make room for a number of shards, called before the owning
+	 * knock is bound
+	 *
+	 * @param shards the number of shards, at least 1
+	 */
+	public void setShards(int shards) {
+		counts = new long[shards * STRIDE];
+	}
+
+	/**
+	 * Count a rejected packet
+	 *
+	 * @param shard  the shard evaluating it
+	 * @param reason LENGTH or SHAPE
+	 */
+	public void reject(int shard, int reason) {
+		counts[shard * STRIDE + reason]++;
+	}
+
+	/**
+	 * @param reason LENGTH or SHAPE
+	 *
+	 * @return the packets rejected for reason, over every shard
+	 */
+	public long getCount(int reason) {
+		long[] snapshot = counts;
+		long total = 0;
+		for (int x = reason; x < snapshot.length; x += STRIDE)
+			total += snapshot[x];
+		return total;
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import cokshare.COKRuleset;
+import cokshare.KnockDescriptor;
+
+/**
+ * Every <code>PortSequenceKnock</code>, compiled into one set of
+ * primitive tables over TCP destination ports: a sorted array of the
+ * ports used, and for each of them the numbers of the knocks whose
+ * sequence uses it.  A SYN then takes one search to find the only
+ * knocks it can move on, however many knocks there are.
+ * <p>
+ * Each source works through each sequence on its own, just as it
+ * would with the knocks checked one by one.  A port which is not the
+ * next in a sequence is ignored by it, and does not stop the source
+ * starting or carrying on with any other, even one whose ports
+ * overlap.  Reaching the end of a sequence fires that knock's
+ * actions, and the source starts that sequence over; one which
+ * outlasts a knock's timeout starts it over too.
+ * <p>
+ * The progress is kept in a <code>SequenceProgress</code> per
+ * evaluation shard, keyed by source and knock number.  The tables
+ * are rebuilt whenever a member is added or removed, and swapped in
+ * whole.  A knock keeps its number across rebuilds, so edits leave
+ * sources' progress alone; knocks are only renumbered, and all
+ * progress dropped, when too many numbers have been used up by knocks
+ * which are gone.
+ * <p>
+ * Progress is capped at a number of sources part way through a
+ * sequence, counting a source once for each sequence, and split
+ * evenly between the shards; see SequenceProgress for how they are
+ * evicted.
+ * <p>
+ * The automaton is owned by a <code>PacketHandler</code> and bound
+ * in its dispatch table in place of the members.  It has no
+ * descriptor of its own.
+ */
+class SequenceAutomaton extends Knock {
+
+	/** knock numbers left over for new knocks before renumbering */
+	protected static final int SPARE_NUMBERS = 64;
+
+	/** knocks using no ports */
+	private static final int[][] NO_KNOCKS = new int[0][];
+
+	/**
+	 * The compiled tables, never changed once built
+	 */
+	protected static class Tables {
+		/** the ports of every sequence, sorted */
+		final int[] ports;
+		/** numbers of the knocks using each port, by column */
+		final int[][] knocksByPort;
+		/** each knock by its number, null for numbers not in use */
+		final PortSequenceKnock[] knocks;
+		/** the timeout of each knock by its number, 0 if not in use */
+		final long[] timeouts;
+		/** bumped on every rebuild */
+		final int version;
+		/** bumped when knocks are renumbered */
+		final int epoch;
+
+		Tables(int[] ports, int[][] knocksByPort, int numbers,
+			   int version, int epoch) {
+			this.ports = ports;
+			this.knocksByPort = knocksByPort;
+			this.knocks = new PortSequenceKnock[numbers];
+			this.timeouts = new long[numbers];
+			this.version = version;
+			this.epoch = epoch;
+		}
+	}
+
+	/** every member */
+	protected HashSet members = new HashSet();
+	/** each member -> its number */
+	protected HashMap knockNumbers = new HashMap();
+	/** next knock number to hand out */
+	protected int nextNumber = 0;
+
+	/** the tables for the current members */
+	protected volatile Tables tables = new Tables(NO_PORTS, NO_KNOCKS, 0, 0, 0);
+	/** number of rebuilds so far */
+	protected int version = 0;
+	/** number of renumberings so far */
+	protected int epoch = 0;
+
+	/** most sequences in progress, over all of the shards */
+	protected final int limit;
+	/** progress of each source, per evaluation shard */
+	protected SequenceProgress[] progress;
+	/** version of the tables each shard's progress was last synced to */
+	protected int[] versions;
+	/** epoch of the tables each shard's progress belongs to */
+	protected int[] epochs;
+	/** sequences in progress over all of the shards */
+	protected AtomicInteger inProgress;
+	/** most sequences ever in progress at once */
+	protected AtomicInteger highWater;
+
+	/**
+	 * Constructor...
+	 *
+	 * @param limit most sequences to keep progress for, over all of
+	 *   the shards
+	 */
+	SequenceAutomaton(int limit) {
+		super(new COKRuleset(), new COKRuleset(), null);
+		this.limit = limit;
+		setShards(1);
+	}
+
+	/**
+	 * Keep progress separately for each shard, so no two shards ever
+	 * touch the same table, each with its share of the limit
+	 */
+	public void setShards(int shards) {
+		SequenceProgress[] newProgress = new SequenceProgress[shards];
+		long now = MonotonicClock.now();
+		inProgress = new AtomicInteger(0);
+		highWater = new AtomicInteger(0);
+		for (int x = 0; x < shards; x++)
+			newProgress[x] = new SequenceProgress((limit + shards - 1) / shards,
+												  tables.timeouts, now,
+												  inProgress, highWater);
+		versions = new int[shards];
+		epochs = new int[shards];
+		progress = newProgress;
+	}
+
+	/**
+	 * Add a knock, rebuilding the tables
+	 *
+	 * @param knock the knock to add
+	 */
+	public synchronized void add(PortSequenceKnock knock) {
+		members.add(knock);
+		compile();
+	}
+
+	/**
+	 * Remove a knock, rebuilding the tables
+	 *
+	 * @param knock the knock to remove
+	 */
+	public synchronized void remove(PortSequenceKnock knock) {
+		members.remove(knock);
+		compile();
+	}
+
+	/** @return true if there are no members left */
+	public synchronized boolean isEmpty() { return members.isEmpty(); }
+
+	/** @return the ports of every member's sequence */
+	public int[] getTCPPorts() { return tables.ports; }
+
+	/**
+	 * Build the tables for the current members.  Knocks which were
+	 * already numbered keep their numbers.
+	 */
+	private void compile() {
+		PortSequenceKnock[] byNumber = new PortSequenceKnock[nextNumber + members.size()];
+		int next = nextNumber;
+		for (Iterator it = members.iterator(); it.hasNext(); ) {
+			PortSequenceKnock knock = (PortSequenceKnock)it.next();
+			Integer number = (Integer)knockNumbers.get(knock);
+			byNumber[number == null ? next++ : number.intValue()] = knock;
+		}
+
+		// renumber once the numbers of knocks since removed pile up,
+		// keeping the members in the same order
+		if (next > 2 * members.size() + SPARE_NUMBERS) {
+			epoch++;
+			int kept = 0;
+			for (int x = 0; x < next; x++)
+				if (byNumber[x] != null)
+					byNumber[kept++] = byNumber[x];
+			next = kept;
+		}
+		HashMap numbers = new HashMap();
+		for (int x = 0; x < next; x++)
+			if (byNumber[x] != null)
+				numbers.put(byNumber[x], new Integer(x));
+		knockNumbers = numbers;
+		nextNumber = next;
+
+		// port -> Vector of the numbers of the knocks using it
+		TreeMap users = new TreeMap();
+		for (int x = 0; x < next; x++) {
+			if (byNumber[x] == null)
+				continue;
+			int[] used = byNumber[x].ports;
+			for (int y = 0; y < used.length; y++) {
+				Integer port = new Integer(used[y]);
+				Vector knocks = (Vector)users.get(port);
+				if (knocks == null)
+					users.put(port, knocks = new Vector());
+				knocks.add(new Integer(x));
+			}
+		}
+
+		int[] ports = new int[users.size()];
+		int[][] knocksByPort = new int[users.size()][];
+		int column = 0;
+		for (Iterator it = users.entrySet().iterator(); it.hasNext(); column++) {
+			Map.Entry entry = (Map.Entry)it.next();
+			Vector knocks = (Vector)entry.getValue();
+			ports[column] = ((Integer)entry.getKey()).intValue();
+			knocksByPort[column] = new int[knocks.size()];
+			for (int x = 0; x < knocks.size(); x++)
+				knocksByPort[column][x] = ((Integer)knocks.get(x)).intValue();
+		}
+
+		Tables built = new Tables(ports, knocksByPort, next, ++version, epoch);
+		for (int x = 0; x < next; x++) {
+			built.knocks[x] = byNumber[x];
+			if (byNumber[x] != null)
+				built.timeouts[x] = byNumber[x].timeout;
+		}
+		tables = built;
+	}
+
+	/**
+	 * Bring a shard's progress up to date with the tables, dropping
+	 * it all if the knocks have been renumbered
+	 *
+	 * @return the shard's progress
+	 */
+	private SequenceProgress sync(int shard, Tables t, long now) {
+		SequenceProgress sources = progress[shard];
+		if (versions[shard] == t.version)
+			return sources;
+
+		if (epochs[shard] != t.epoch)
+			sources.clear(now);
+		sources.setTimeouts(t.timeouts);
+		versions[shard] = t.version;
+		epochs[shard] = t.epoch;
+		return sources;
+	}
+
+	/**
+	 * @return the sequences in progress, their high water mark, the
+	 *   limit on them, and the number evicted and expired, as
+	 *   { in progress, high water, limit, evicted, expired }, over
+	 *   all of the shards
+	 */
+	public long[] getCounts() {
+		SequenceProgress[] shardProgress = progress;
+		long[] counts = new long[5];
+		counts[0] = inProgress.get();
+		counts[1] = highWater.get();
+		for (int x = 0; x < shardProgress.length; x++) {
+			counts[2] += shardProgress[x].getLimit();
+			counts[3] += shardProgress[x].getEvictedCount();
+			counts[4] += shardProgress[x].getExpiredCount();
+		}
+		return counts;
+	}
+
+	/** Drop the shard's sequences which have timed out */
+	public void expire(int shard, long now) {
+		sync(shard, tables, now).expire(now);
+	}
+
+	/**
+	 * Move a packet's source on through each sequence whose next
+	 * port it hit.  Only initial SYNs count, so ACKs and other
+	 * traffic on a sequence port can not advance a knock.
+	 */
+	public void checkPacket(PacketView packet) {
+		if (!packet.isTCP() || !packet.isInitialSyn())
+			return;
+
+		Tables t = tables;
+		int port = packet.getDestinationPort();
+		int column = Arrays.binarySearch(t.ports, port);
+		if (column < 0)
+			return;
+
+		long now = MonotonicClock.now();
+		int shard = packet.getShard();
+		SequenceProgress sources = sync(shard, t, now);
+		int source = packet.getSourceAddress();
+		int[] numbers = t.knocksByPort[column];
+		for (int x = 0; x < numbers.length; x++) {
+			PortSequenceKnock knock = t.knocks[numbers[x]];
+			long key = SequenceProgress.keyFor(source, numbers[x]);
+			long state = sources.get(key);
+			int index = SequenceProgress.indexOf(state);
+			long started = SequenceProgress.startedOf(state);
+			if (state != 0 && now - started >= knock.timeout) {
+				sources.remove(key);
+				state = 0;
+				index = 0;
+			}
+
+			if (knock.sequence[index] != port)
+				continue;
+			if (state == 0)
+				started = now;
+			if (++index < knock.sequence.length) {
+				sources.put(key, SequenceProgress.pack(started, index), index, now);
+				continue;
+			}
+			if (state != 0)
+				sources.remove(key);
+
+			if (knock.validSource(source)) {
+				knock.successAction.execute(packet, knock.getKnockDescriptor().getKnockDesc());
+			} else {
+				knock.badSourceAction.execute(packet, knock.getKnockDescriptor().getKnockDesc());
+			}
+		}
+	}
+
+	public int hashCode() { return System.identityHashCode(this); }
+
+	/**
+	 * The automaton is not a knock of its own, its members each have
+	 * a descriptor
+	 */
+	public KnockDescriptor getKnockDescriptor() { return null; }
+}
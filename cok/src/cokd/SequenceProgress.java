@@ -0,0 +1,425 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Progress of each source address through each port-sequence knock,
+ * in an open addressed hash table keyed by the address and the
+ * knock's number in the <code>SequenceAutomaton</code> together, as
+ * a long.  The progress is packed into one long too, the time the
+ * first port was hit in milliseconds shifted up 16 bits with the
+ * index of the next port in the low 16 bits, so looking a source up
+ * or advancing it allocates nothing.
+ * <p>
+ * Every entry is put on a <code>TimerWheel</code> when it starts,
+ * and <code>expire()</code> drops those whose knock has timed out,
+ * so a source which gives up part way through does not linger until
+ * it is next seen.
+ * <p>
+ * The table holds at most a fixed number of entries, so a flood of
+ * SYNs from spoofed addresses can not grow it without bound.  When
+ * it is full a new entry evicts one chosen by a CLOCK sweep: each
+ * entry has a few chances, as many as the ports its source has hit
+ * up to <code>MAX_CHANCES</code>, and the hand takes one away from
+ * every entry it passes, evicting the first with none left.  Entries
+ * which have been waiting longest, and have got least far, go first,
+ * and one which has timed out goes as soon as the hand reaches it.
+ * The wheel is rebuilt from the table whenever entries since dropped
+ * have piled up, so it is bounded too.
+ * <p>
+ * Not thread safe, every evaluation shard keeps its own.  The
+ * counters are read racily by other threads, except for the number
+ * of entries over all of the shards, and its high water mark, which
+ * the shards share.
+ */
+class SequenceProgress implements TimerWheel.Expiry {
+
+	/** smallest table, a power of 2 */
+	private static final int MIN_CAPACITY = 16;
+
+	/** most chances an entry has of surviving the eviction hand */
+	static final int MAX_CHANCES = 3;
+
+	/** bits of a state holding the sequence index */
+	private static final int INDEX_BITS = 16;
+	/** mask of the sequence index in a state */
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+	/** keys, meaningless where states[] is 0 */
+	private long[] keys;
+	/** packed states, 0 marks an empty slot */
+	private long[] states;
+	/** chances each entry has left, see evict() */
+	private byte[] chances;
+	/** number of entries in progress */
+	private int size;
+	/** slot the eviction hand looks at next */
+	private int hand;
+
+	/** most entries the table may hold */
+	private final int limit;
+	/** how long each knock may take in milliseconds, by its number */
+	private long[] timeouts;
+	/** entries in progress, filed by when they time out */
+	private TimerWheel wheel;
+
+	/** entries in progress over all of the shards */
+	private final AtomicInteger total;
+	/** most entries ever held at once over all of the shards */
+	private final AtomicInteger highWater;
+	/** entries evicted to make room */
+	private long evictedCount;
+	/** entries dropped for timing out */
+	private long expiredCount;
+
+	/**
+	 * @param limit    most entries the table may hold, at least 1
+	 * @param timeouts how long each knock may take in milliseconds,
+	 *   by its number
+	 * @param now      the current time, in milliseconds
+	 * @param total    entries in progress over all of the shards
+	 * @param highWater most entries ever held at once over all of the
+	 *   shards
+	 */
+	SequenceProgress(int limit, long[] timeouts, long now,
+					 AtomicInteger total, AtomicInteger highWater) {
+		this.limit = Math.max(1, limit);
+		this.timeouts = timeouts;
+		this.total = total;
+		this.highWater = highWater;
+		clear(now);
+	}
+
+	/**
+	 * @param source a source address
+	 * @param knock  the number of a knock
+	 *
+	 * @return the key of the source's progress through the knock
+	 */
+	static long keyFor(int source, int knock) {
+		return ((long)source << 32) | (knock & 0xffffffffL);
+	}
+
+	/** @return the number of the knock, of a key */
+	static int knockOf(long key) { return (int)key; }
+
+	/**
+	 * @param started when the first port was hit, in milliseconds
+	 * @param index   the index of the next port, at least 1
+	 *
+	 * @return the packed state
+	 */
+	static long pack(long started, int index) {
+		return (started << INDEX_BITS) | index;
+	}
+
+	/** @return the index of the next port, of a packed state */
+	static int indexOf(long state) { return (int)(state & INDEX_MASK); }
+
+	/** @return when the first port was hit, of a packed state */
+	static long startedOf(long state) { return state >>> INDEX_BITS; }
+
+	/** @return the number of entries in progress */
+	public int size() { return size; }
+
+	/** @return the most entries the table may hold */
+	public int getLimit() { return limit; }
+
+	/** @return the number of entries evicted to make room */
+	public long getEvictedCount() { return evictedCount; }
+
+	/** @return the number of entries dropped for timing out */
+	public long getExpiredCount() { return expiredCount; }
+
+	/** @return how long a knock may take, 0 for one which is gone */
+	private long timeoutOf(long key) {
+		int knock = knockOf(key);
+		return knock < timeouts.length ? timeouts[knock] : 0;
+	}
+
+	/**
+	 * Change how long the knocks may take.  An entry whose knock's
+	 * timeout got longer is put on the wheel again for its new
+	 * deadline; the old one comes due first and is ignored.
+	 *
+	 * @param timeouts how long each knock may take in milliseconds,
+	 *   by its number
+	 */
+	public void setTimeouts(long[] timeouts) {
+		long[] old = this.timeouts;
+		this.timeouts = timeouts;
+		for (int x = 0; x < states.length; x++) {
+			if (states[x] == 0)
+				continue;
+			int knock = knockOf(keys[x]);
+			long timeout = timeoutOf(keys[x]);
+			if (knock >= old.length || timeout > old[knock])
+				wheel.schedule(keys[x], startedOf(states[x]) + timeout);
+		}
+	}
+
+	/**
+	 * Forget every entry
+	 *
+	 * @param now the current time, in milliseconds
+	 */
+	public void clear(long now) {
+		if (size > 0)
+			total.addAndGet(-size);
+		keys = new long[MIN_CAPACITY];
+		states = new long[MIN_CAPACITY];
+		chances = new byte[MIN_CAPACITY];
+		size = 0;
+		hand = 0;
+		wheel = new TimerWheel(6, 8, now);
+	}
+
+	/** @return the home slot of a key */
+	private int slotFor(long key) {
+		int hash = (int)(key ^ (key >>> 32)) * 0x9e3779b1;
+		return (hash ^ (hash >>> 16)) & (states.length - 1);
+	}
+
+	/**
+	 * @param key a source and knock, from keyFor()
+	 *
+	 * @return the packed state, 0 if there is none
+	 */
+	public long get(long key) {
+		int mask = states.length - 1;
+		for (int slot = slotFor(key); states[slot] != 0; slot = (slot + 1) & mask)
+			if (keys[slot] == key)
+				return states[slot];
+		return 0;
+	}
+
+	/**
+	 * @param key   a source and knock, from keyFor()
+	 * @param state its packed state
+	 * @param now   the current time, in milliseconds
+	 *
+	 * @return true if the knock has timed out
+	 */
+	public boolean timedOut(long key, long state, long now) {
+		return now - startedOf(state) >= timeoutOf(key);
+	}
+
+	/**
+	 * Set a packed state, growing the table if needed, or evicting
+	 * another entry if it is full.  An entry new to the table is
+	 * scheduled to expire when its knock times out.
+	 *
+	 * @param key   a source and knock, from keyFor()
+	 * @param state its packed state, not 0
+	 * @param depth the number of ports the source has hit
+	 * @param now   the current time, in milliseconds
+	 */
+	public void put(long key, long state, int depth, long now) {
+		byte chance = (byte)Math.min(depth, MAX_CHANCES);
+		int mask = states.length - 1;
+		int slot = slotFor(key);
+		for (; states[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				states[slot] = state;
+				chances[slot] = chance;
+				return;
+			}
+		}
+
+		if (size >= limit) {
+			evict(now);
+			put(key, state, depth, now);
+			return;
+		}
+		if ((size + 1) * 4 > states.length * 3) {
+			rebuild(now);
+			put(key, state, depth, now);
+			return;
+		}
+		keys[slot] = key;
+		states[slot] = state;
+		chances[slot] = chance;
+		size++;
+		int held = total.incrementAndGet();
+		for (int peak = highWater.get(); held > peak; peak = highWater.get())
+			if (highWater.compareAndSet(peak, held))
+				break;
+
+		// drop the wheel's entries for keys which have since gone
+		if (wheel.size() >= 2 * limit)
+			rewheel(now);
+		wheel.schedule(key, startedOf(state) + timeoutOf(key));
+	}
+
+	/**
+	 * Move the hand on until it finds an entry with no chances left,
+	 * or one which has timed out, and drop it.  Every entry starts
+	 * with at least one chance, and loses one each time it is passed,
+	 * so the hand goes round at most MAX_CHANCES + 1 times.
+	 */
+	private void evict(long now) {
+		int mask = states.length - 1;
+		while (true) {
+			int slot = hand;
+			hand = (hand + 1) & mask;
+			if (states[slot] == 0)
+				continue;
+			if (timedOut(keys[slot], states[slot], now)) {
+				expiredCount++;
+			} else if (chances[slot] > 0) {
+				chances[slot]--;
+				continue;
+			} else {
+				evictedCount++;
+			}
+
+			// a later entry may be shifted into the slot, look again
+			removeAt(slot);
+			hand = slot;
+			return;
+		}
+	}
+
+	/**
+	 * Drop every entry whose knock has timed out
+	 *
+	 * @param now the current time, in milliseconds
+	 *
+	 * @return the number of entries dropped
+	 */
+	public int expire(long now) {
+		int before = size;
+		wheel.advance(now, this);
+		return before - size;
+	}
+
+	/**
+	 * Drop an entry the wheel says has timed out, unless it has been
+	 * dropped, or has started over, since it was scheduled
+	 */
+	public void expired(long key, long now) {
+		long state = get(key);
+		if (state != 0 && timedOut(key, state, now)) {
+			remove(key);
+			expiredCount++;
+		}
+	}
+
+	/**
+	 * Forget an entry
+	 *
+	 * @param key a source and knock, from keyFor()
+	 */
+	public void remove(long key) {
+		int mask = states.length - 1;
+		int slot = slotFor(key);
+		for (; states[slot] != 0; slot = (slot + 1) & mask)
+			if (keys[slot] == key)
+				break;
+		if (states[slot] != 0)
+			removeAt(slot);
+	}
+
+	/**
+	 * Empty a slot, shifting later entries of its run back over the
+	 * hole
+	 */
+	private void removeAt(int slot) {
+		int mask = states.length - 1;
+		int hole = slot;
+		for (slot = (slot + 1) & mask; states[slot] != 0; slot = (slot + 1) & mask) {
+			int home = slotFor(keys[slot]);
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				states[hole] = states[slot];
+				chances[hole] = chances[slot];
+				hole = slot;
+			}
+		}
+		states[hole] = 0;
+		size--;
+		total.decrementAndGet();
+	}
+
+	/**
+	 * Rehash, dropping entries which have timed out, into a table
+	 * sized for what is left
+	 */
+	private void rebuild(long now) {
+		long[] oldKeys = keys;
+		long[] oldStates = states;
+		byte[] oldChances = chances;
+
+		int live = 0;
+		for (int x = 0; x < oldStates.length; x++)
+			if (oldStates[x] != 0 && !timedOut(oldKeys[x], oldStates[x], now))
+				live++;
+
+		int capacity = MIN_CAPACITY;
+		while ((live + 1) * 2 > capacity)
+			capacity <<= 1;
+
+		keys = new long[capacity];
+		states = new long[capacity];
+		chances = new byte[capacity];
+		expiredCount += size - live;
+		total.addAndGet(live - size);
+		size = 0;
+		hand = 0;
+		int mask = capacity - 1;
+		for (int x = 0; x < oldStates.length; x++) {
+			long state = oldStates[x];
+			if (state == 0 || timedOut(oldKeys[x], state, now))
+				continue;
+			int slot = slotFor(oldKeys[x]);
+			while (states[slot] != 0)
+				slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[x];
+			states[slot] = state;
+			chances[slot] = oldChances[x];
+			size++;
+		}
+	}
+
+	/**
+	 * Replace the wheel with one holding just the entries in the
+	 * table
+	 */
+	private void rewheel(long now) {
+		wheel = new TimerWheel(6, 8, now);
+		for (int x = 0; x < states.length; x++)
+			if (states[x] != 0)
+				wheel.schedule(keys[x], startedOf(states[x]) + timeoutOf(keys[x]));
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+/**
+ * Hashed timing wheel of long keys, each with a deadline in
+ * milliseconds.  Time is cut into ticks of 2^tickBits milliseconds,
+ * and a key is filed in the bucket for the tick its deadline falls
+ * in, modulo the number of buckets, so scheduling is O(1).
+ * Advancing the wheel visits only the buckets for the ticks that
+ * have passed; a key whose deadline is still rotations away is
+ * simply left where it is until its own rotation comes round.
+ * <p>
+ * Keys are never cancelled.  A key whose entry has become stale is
+ * expected to be checked, and ignored, by whoever is told it expired.
+ * <p>
+ * Not thread safe.
+ */
+class TimerWheel {
+
+	/** told about each key whose deadline has passed */
+	interface Expiry {
+		/**
+		 * @param key a key whose deadline has passed
+		 * @param now the time the wheel was advanced to
+		 */
+		void expired(long key, long now);
+	}
+
+	/** room for keys a bucket starts with, and shrinks back to */
+	private static final int BUCKET_CAPACITY = 4;
+
+	/** milliseconds per tick, as a power of 2 */
+	private int tickBits;
+	/** mask of a tick's bucket */
+	private int mask;
+
+	/** keys in each bucket */
+	private long[][] keys;
+	/** deadline of each key, parallel to keys */
+	private long[][] deadlines;
+	/** number of keys in each bucket */
+	private int[] counts;
+	/** number of keys on the wheel */
+	private int size;
+
+	/** earliest tick whose bucket may still hold due keys, the
+	 *  target tick of an advance is visited again by the next one */
+	private long current;
+
+	/**
+	 * @param tickBits log2 of the milliseconds per tick
+	 * @param slotBits log2 of the number of buckets
+	 * @param now      the current time, in milliseconds
+	 */
+	TimerWheel(int tickBits, int slotBits, long now) {
+		this.tickBits = tickBits;
+		this.mask = (1 << slotBits) - 1;
+		this.keys = new long[1 << slotBits][];
+		this.deadlines = new long[1 << slotBits][];
+		this.counts = new int[1 << slotBits];
+		this.current = now >> tickBits;
+	}
+
+	/** @return the number of keys on the wheel, stale ones included */
+	public int size() { return size; }
+
+	/**
+	 * File a key to expire at a deadline.  A deadline already passed
+	 * expires on the next advance.
+	 *
+	 * @param key      the key
+	 * @param deadline when it expires, in milliseconds
+	 */
+	public void schedule(long key, long deadline) {
+		int slot = (int)(Math.max(deadline >> tickBits, current) & mask);
+		int count = counts[slot];
+		if (keys[slot] == null) {
+			keys[slot] = new long[BUCKET_CAPACITY];
+			deadlines[slot] = new long[BUCKET_CAPACITY];
+		} else if (count == keys[slot].length) {
+			long[] newKeys = new long[count * 2];
+			long[] newDeadlines = new long[count * 2];
+			System.arraycopy(keys[slot], 0, newKeys, 0, count);
+			System.arraycopy(deadlines[slot], 0, newDeadlines, 0, count);
+			keys[slot] = newKeys;
+			deadlines[slot] = newDeadlines;
+		}
+		keys[slot][count] = key;
+		deadlines[slot][count] = deadline;
+		counts[slot] = count + 1;
+		size++;
+	}
+
+	/**
+	 * Expire every key whose deadline is at or before now.  The
+	 * expiry may schedule keys again.
+	 *
+	 * @param now    the current time, in milliseconds
+	 * @param expiry told about each key expired
+	 *
+	 * @return the number of keys expired
+	 */
+	public int advance(long now, Expiry expiry) {
+		long target = now >> tickBits;
+		if (size == 0 || target < current) {
+			current = Math.max(current, target);
+			return 0;
+		}
+
+		// past a whole rotation every bucket is visited just once
+		long first = Math.max(current, target - mask);
+		current = target;
+		int expired = 0;
+		for (long tick = first; tick <= target; tick++) {
+			int slot = (int)(tick & mask);
+			int count = counts[slot];
+			if (count == 0)
+				continue;
+
+			// the expiry may grow this bucket, so never hold on to it
+			int kept = 0;
+			for (int x = 0; x < count; x++) {
+				long key = keys[slot][x];
+				long deadline = deadlines[slot][x];
+				if (deadline <= now) {
+					expiry.expired(key, now);
+					expired++;
+				} else {
+					keys[slot][kept] = key;
+					deadlines[slot][kept] = deadline;
+					kept++;
+				}
+			}
+
+			// keys the expiry scheduled here went after the old ones
+			int added = counts[slot] - count;
+			System.arraycopy(keys[slot], count, keys[slot], kept, added);
+			System.arraycopy(deadlines[slot], count, deadlines[slot], kept, added);
+			counts[slot] = kept + added;
+			if (counts[slot] == 0 && keys[slot].length > BUCKET_CAPACITY) {
+				keys[slot] = null;
+				deadlines[slot] = null;
+			}
+		}
+		size -= expired;
+		return expired;
+	}
+}
@@ -36,8 +36,6 @@ import java.lang.*;
 import java.util.*;
 import java.security.*;
 
-import net.sourceforge.jpcap.net.*;
-
 import cokshare.KnockDescriptor;
 import cokshare.UDP_OTP_KnockDescriptor;
 import cokshare.MDC;
@@ -46,25 +44,59 @@ import cokshare.SimpleSyslogger;
 /**
  * Implementation of Knock to handle standard OTP passwords embedded
  * in UDP packets destined for an appropriate port.
+ * <p>
+ * The password state is shared by every source, so when evaluation
+ * is sharded several threads may check passwords at once.  Decoding
+ * and hashing a candidate is done without any lock (each thread has
+ * its own digester from <code>MDC.getDigester()</code>); only
+ * comparing against and advancing the state is done holding the
+ * knock's monitor.
+ * <p>
+ * A <code>PacketHandler</code> does not call these knocks one by one;
+ * knocks sharing a port and algorithm are checked together by an
+ * <code>OTPKnockGroup</code>, which advances them through
+ * <code>accept()</code>.
  */
 public class UDP_OTP_Knock extends Knock {
 
+	/** shortest payload which could hold an OTP, the binary form */
+	public static final int MIN_OTP_PAYLOAD = MDC.BINARY_LENGTH;
+	/** longest payload considered, six words with some slack for whitespace */
+	public static final int MAX_OTP_PAYLOAD = 64;
+
 	/** initial destination hash NOTE: this must be protected! */
-	protected byte[] firstOTP;
+	protected long firstOTP;
 	/** next value to hash to */
-	protected byte[] nextOTP;
+	protected long nextOTP;
 	/** table to track replay attacks */
 	protected HashSet oldKeys;
+	/** oldKeys as decoded passwords, so spotting a replay builds no
+	 *  String (values are unused, only keys matter) */
+	protected OTPIndex usedKeys = new OTPIndex();
 	/** current one way hash algorithm */
 	protected String algo;
 	/** "rulename" replaces seed in OTP or S/Key */
 	protected String rulename;
-	/** actual hashing object */
-	protected MessageDigest digester;
-	/** action to execute on replay */
-	protected KnockAction replayAction;
+	/** slot each evaluating thread decodes payloads into */
+	private static final ThreadLocal decodeBuffers = new ThreadLocal() {
+			protected Object initialValue() { return new long[1]; }
+		};
+	/** action to execute on replay, read by groups without the
+	 * knock's monitor */
+	protected volatile KnockAction replayAction;
 	/** port this knock is bound to */
 	protected int port;
+	/** passwords which may be skipped, read by groups without the
+	 * knock's monitor */
+	protected volatile int lookAhead;
+	/** packets turned away before decoding */
+	protected RejectCounters rejects = new RejectCounters();
+	/** bumped, holding the monitor, whenever the password state or
+	 * look-ahead changes */
+	protected volatile long generation = 0;
+	/** recently checked passwords per evaluation shard, each made by
+	 * its shard when first needed (grouped knocks never need one) */
+	protected OTPMemo[] memos = new OTPMemo[1];
 
 	/**
 	 * Constructor...
@@ -75,114 +107,233 @@ public class UDP_OTP_Knock extends Knock {
 		super(desc.getSuccessRules(), desc.getBadSourceRules(),
 			  desc.getValidSourceAddrs());
 
-		this.firstOTP = new byte[desc.getFirstOTP().length];
-		System.arraycopy(desc.getFirstOTP(), 0,
-						 this.firstOTP, 0,
-						 desc.getFirstOTP().length);
-
-		this.nextOTP = new byte[desc.getNextOTP().length];
-		System.arraycopy(desc.getNextOTP(), 0,
-						 this.nextOTP, 0,
-						 desc.getNextOTP().length);
+		this.firstOTP = MDC.foldedToLong(desc.getFirstOTP());
+		this.nextOTP = MDC.foldedToLong(desc.getNextOTP());
 
 		this.replayAction = new KnockAction(desc.getReplayRules());
 		this.algo = desc.getAlgorithm();
 		this.rulename = desc.getRulename();
 		this.port = desc.getPort();
+		this.lookAhead = Math.max(0, desc.getLookAhead());
 
 		oldKeys = desc.getOldKeys();
 		if (oldKeys == null)
 			oldKeys = new HashSet();
+		for (Iterator it = oldKeys.iterator(); it.hasNext(); ) {
+			try {
+				usedKeys.put(MDC.readableToLong((String)it.next()), this);
+			} catch (IllegalArgumentException e) {
+				// not a password we could ever be sent again
+			}
+		}
 
 		try {
-			digester = MessageDigest.getInstance(algo);
+			getDigester();
 		} catch (NoSuchAlgorithmException e) {
 			SimpleSyslogger.syslog("DEBUG (UDP_OTP_Knock): " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Check an incoming packet for a valid knock by extracting the contained data
-	 *  and calling <code>checkReadable()</code>
+	 * @return the calling thread's digester for this knock's algorithm
+	 *
+	 * @throws NoSuchAlgorithmException if the algorithm is unknown
+	 */
+	protected MessageDigest getDigester() throws NoSuchAlgorithmException {
+		return MDC.getDigester(algo);
+	}
+
+	/**
+	 * Take the actions of an updated descriptor, including the replay
+	 * action and look-ahead, keeping the one-time-password state
+	 *
+	 * @param desc the updated descriptor
+	 */
+	public synchronized void update(KnockDescriptor desc) {
+		super.update(desc);
+		if (desc instanceof UDP_OTP_KnockDescriptor) {
+			UDP_OTP_KnockDescriptor udesc = (UDP_OTP_KnockDescriptor)desc;
+			replayAction = new KnockAction(udesc.getReplayRules());
+			lookAhead = Math.max(0, udesc.getLookAhead());
+			generation++;
+		}
+	}
+
+	/** @return the port this knock is bound to */
+	public int[] getUDPPorts() { return new int[] { port }; }
+
+	/** @param shards the number of shards counting rejects and memos */
+	public void setShards(int shards) {
+		rejects.setShards(shards);
+		memos = new OTPMemo[shards];
+	}
+
+	/** @return the counts of packets turned away before decoding */
+	RejectCounters getRejectCounters() { return rejects; }
+
+	/** @return the memo of each shard, null where none was needed */
+	OTPMemo[] getMemos() { return memos; }
+
+	/**
+	 * Check an incoming packet for a valid knock by decoding the
+	 * contained data in place and calling <code>checkDecoded()</code>.
+	 * The payload may be six words, hex or binary (see
+	 * <code>MDC.decodeOTP()</code>); payloads of the wrong length or
+	 * shape are counted and dropped before decoding.  Nothing is
+	 * allocated unless the payload decodes.
 	 *
-	 * @param inPacket should be a UDPPacket from COKd
+	 * @param packet should be a UDP packet from COKd
 	 */
-	public void checkPacket(Packet inPacket) {
+	public void checkPacket(PacketView packet) {
+		if (!packet.isUDP())
+			return;
+		int length = packet.getPayloadLength();
+		if (length < MIN_OTP_PAYLOAD || length > MAX_OTP_PAYLOAD) {
+			rejects.reject(packet.getShard(), RejectCounters.LENGTH);
+			return;
+		}
 
-		if (inPacket instanceof UDPPacket) {
-			String otpString = new String(((UDPPacket)inPacket).getData());
-			checkReadable(otpString, inPacket);
+		byte[] data = packet.getData();
+		int offset = packet.getPayloadOffset();
+		if (!MDC.otpShaped(data, offset, length)) {
+			rejects.reject(packet.getShard(), RejectCounters.SHAPE);
+			return;
 		}
+		long[] decoded = (long[])decodeBuffers.get();
+		if (MDC.decodeOTP(data, offset, length, decoded))
+			checkDecoded(decoded[0], packet);
 	}
 
 	/**
-	 * The meat of verifying a one-time-passwords lies here.  A string
-	 * containing the password and a packet are taken in.  The string
-	 * is converted <code>fromReadable()</code> and hashed, then
+	 * The meat of verifying a one-time-passwords lies here.  A decoded
+	 * password and a packet are taken in; nothing is turned into a
+	 * String unless the password is accepted.  The password is hashed, then
 	 * folded and compared with the stored folded one-time-password.
 	 * If the key matches then the success action is called, if the
 	 * key is a replay the replay action is called, and if the match
 	 * blatantly fails it is ignored (for now)
+	 * <p>
+	 * With a look-ahead of k the hash is stepped up to k more times,
+	 * so a password up to k places further down the list is taken
+	 * too; the passwords it skips are remembered as used.
+	 * <p>
+	 * The shard's <code>OTPMemo</code> is asked first: a password
+	 * which needed nothing doing since the state last changed is
+	 * dropped, and one seen before is not hashed again.  Passwords
+	 * are remembered as six words, whichever form they came in.
 	 *
-	 * @param otpString a string containing a one-time-password
+	 * @param incomingPotentialOTP the password decoded into a folded
+	 *   digest
 	 *
-	 * @param inPacket a UDPPacket which can be passed to an action if necessary
+	 * @param packet a view of the packet which can be passed to an action if necessary
 	 *
-	 * @see cokshare.MDC#fromReadable
+	 * @see cokshare.MDC#decodeOTP
 	 * @see cokshare.MDC#foldHash
 	 */
-	protected void checkReadable(String otpString, Packet inPacket) {
-		if (inPacket instanceof UDPPacket) {
-			UDPPacket packet = (UDPPacket)inPacket;
-			int destPort = packet.getDestinationPort();
-			
-			try {
-				byte[] incomingPotentialOTP = MDC.fromReadable(otpString);
-				byte[] foldedPotentialOTP = null;
+	protected void checkDecoded(long incomingPotentialOTP, PacketView packet) {
+		OTPMemo memo = memos[packet.getShard()];
+		if (memo == null)
+			memos[packet.getShard()] = memo = new OTPMemo();
 
-				try {
-					foldedPotentialOTP = MDC.foldHash(algo, digester.digest(incomingPotentialOTP));
-				} catch (NoSuchAlgorithmException e) {
-					SimpleSyslogger.syslog("DEBUG (UDP_OTP_Knock): " + e.getMessage());
-				}
+		int window = lookAhead;
+		long[] chain = chainBuffer(window + 1);
+		long checked = generation;
+		int known = memo.lookup(incomingPotentialOTP, checked, chain);
+		if (known == OTPMemo.QUIET)
+			return;
 
-				boolean match = false;
-				if (destPort == port && foldedPotentialOTP != null &&
-					foldedPotentialOTP.length == nextOTP.length) {
-					int mismatches = 0;
-					for (int x = 0; x < foldedPotentialOTP.length; x++) {
-						if (foldedPotentialOTP[x] != nextOTP[x]) {
-							mismatches++;
-							break;
-						}					
-					}
-					if (mismatches == 0)
-						match = true;
-				}
+		int steps = 0;
+		try {
+			MessageDigest digester = getDigester();
+			long folded = incomingPotentialOTP;
+			if (known == OTPMemo.FOLDED)
+				folded = chain[steps++];
+			for (; steps <= window; steps++)
+				chain[steps] = folded = MDC.hashAndFold(algo, digester, folded);
+		} catch (NoSuchAlgorithmException e) {
+			SimpleSyslogger.syslog("DEBUG (UDP_OTP_Knock): " + e.getMessage());
+		}
+
+		KnockAction action = null;
+		boolean quiet;
+		synchronized (this) {
+			quiet = checked == generation;
+			int skipped = -1;
+			if (packet.getDestinationPort() == port) {
+				for (int x = 0; x < steps && skipped < 0; x++)
+					if (chain[x] == nextOTP)
+						skipped = x;
+			}
 
-				if (match) {
-					if (validSource(packet.getSourceAddress())) {
-						oldKeys.add(otpString);
-					
-						nextOTP = new byte[incomingPotentialOTP.length];
-						for (int x = 0; x < incomingPotentialOTP.length; x++)
-							nextOTP[x] = incomingPotentialOTP[x];
-
-						successAction.execute((IPPacket)packet,getKnockDescriptor().getKnockDesc());
-					} else {
-						badSourceAction.execute((IPPacket)packet,getKnockDescriptor().getKnockDesc());
-					}
+			if (skipped >= 0) {
+				if (accept(incomingPotentialOTP, packet, chain, skipped)) {
+					action = successAction;
 				} else {
-					if (oldKeys.contains(otpString)) {
-						replayAction.execute((IPPacket)packet,getKnockDescriptor().getKnockDesc());
-					}
+					action = badSourceAction;
+				}
+			} else {
+				if (usedKeys.find(incomingPotentialOTP, -1) >= 0) {
+					action = replayAction;
 				}
-			} catch (IllegalArgumentException e) {
-				// COK saw a UDP packet which isn't a knock and flipped out!
-				//   so we ignore it for now!
-				//SimpleSyslogger.syslog("Illegal Argument: " + e.getMessage());
 			}
 		}
+
+		if (steps > 0)
+			memo.remember(incomingPotentialOTP, chain[0],
+						  (quiet && action == null) ? checked : -1);
+		if (action != null)
+			action.execute(packet,getKnockDescriptor().getKnockDesc());
+	}
+
+	/**
+	 * @param length the number of chain values needed
+	 *
+	 * @return the calling thread's buffer for stepping a candidate's
+	 *   hash chain, at least length long
+	 */
+	static long[] chainBuffer(int length) {
+		long[] chain = (long[])chainBuffers.get();
+		if (chain.length < length) {
+			chain = new long[length];
+			chainBuffers.set(chain);
+		}
+		return chain;
+	}
+
+	/** buffers for chainBuffer() */
+	private static final ThreadLocal chainBuffers = new ThreadLocal() {
+			protected Object initialValue() { return new long[1]; }
+		};
+
+	/**
+	 * Take a password already found to hash to this knock's next
+	 * one-time-password, possibly after skipping some passwords, if
+	 * it came from a valid source
+	 *
+	 * @param decoded   the decoded password, remembered to spot replays
+	 * @param packet    a view of the packet carrying it
+	 * @param chain     the password's hash chain, chain[x] being
+	 *   decoded hashed x + 1 times
+	 * @param skipped   how many passwords were skipped, so
+	 *   chain[skipped] is the next one-time-password
+	 *
+	 * @return true if the password was accepted and is now the next
+	 *   value to hash to, false if the source was invalid
+	 */
+	synchronized boolean accept(long decoded, PacketView packet,
+								long[] chain, int skipped) {
+		if (!validSource(packet.getSourceAddress()))
+			return false;
+
+		oldKeys.add(MDC.toReadable(decoded));
+		usedKeys.put(decoded, this);
+		for (int x = 0; x < skipped; x++) {
+			oldKeys.add(MDC.toReadable(chain[x]));
+			usedKeys.put(chain[x], this);
+		}
+		nextOTP = decoded;
+		generation++;
+		return true;
 	}
 
 	/**
@@ -192,10 +343,7 @@ public class UDP_OTP_Knock extends Knock {
 	 * @return an integer hashCode for this instance
 	 */
 	public int hashCode() {
-		int retval = 0;
-		for (int x = 0; x < 4; x++) {
-			retval |= firstOTP[x] ^ firstOTP[x+4];
-		}
+		int retval = (int)(firstOTP ^ (firstOTP >>> 32));
 
 		retval ^= ((port & 0xff) << 16) | (port & 0xffff);
 
@@ -207,12 +355,16 @@ public class UDP_OTP_Knock extends Knock {
 	 *
 	 * @return return a UDP_OTP_KnockDescriptor based on this knock.
 	 */
-	public KnockDescriptor getKnockDescriptor() {
-		return new UDP_OTP_KnockDescriptor(firstOTP, nextOTP, port, 
-										   successAction.getRuleset(),
-										   badSourceAction.getRuleset(),
-										   replayAction.getRuleset(),
-										   rulename,
-										   algo, oldKeys);
+	public synchronized KnockDescriptor getKnockDescriptor() {
+		UDP_OTP_KnockDescriptor desc =
+			new UDP_OTP_KnockDescriptor(MDC.longToFolded(firstOTP),
+										MDC.longToFolded(nextOTP), port, 
+										successAction.getRuleset(),
+										badSourceAction.getRuleset(),
+										replayAction.getRuleset(),
+										rulename,
+										algo, oldKeys);
+		desc.setLookAhead(lookAhead);
+		return addValidSources(desc);
 	}
 }
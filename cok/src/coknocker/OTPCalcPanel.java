@@ -104,8 +104,7 @@ class OTPCalcPanel extends JPanel {
 
 		buttonCalc = new JButton("Calculate OTP");
 
-		String[] algorithms = {"MD5","SHA1"};
-		listAlgorithm = new JComboBox(algorithms);
+		listAlgorithm = new JComboBox(MDC.ALGORITHMS);
 		listAlgorithm.setSelectedIndex(1);	textNumber.setDocument(new UsefulFilter(UsefulFilter.NUM));
 
 		checkRFCCompliant = new JCheckBox(new AbstractAction("RFC Compliant?"){
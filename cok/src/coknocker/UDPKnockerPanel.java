@@ -124,8 +124,7 @@ class UDPKnockerPanel extends JPanel {
 		buttonSend      = new JButton("Send Knock >>");
 		buttonCalculate = new JButton("Calculate OTP");
 
-		String[] algorithms = {"MD5","SHA1"};
-		listAlgorithm = new JComboBox(algorithms);
+		listAlgorithm = new JComboBox(MDC.ALGORITHMS);
 		listAlgorithm.setSelectedIndex(1);
 
 		sepKnockCalc = new JSeparator();
@@ -36,6 +36,7 @@ import java.net.*;
 import java.io.*;
 import java.security.*;
 
+import cokshare.MDC;
 import cokshare.UsefulFilter;
 
 /**
@@ -57,7 +58,7 @@ class clCOKnocker {
 		else {
 			String knockType = args[1];
 			if (knockType.equals("udp")) {
-				if (args.length != 5) {
+				if (args.length != 5 && args.length != 6) {
 					System.out.println("Illegal argument count!");
 					usage();					
 				} else {
@@ -65,7 +66,13 @@ class clCOKnocker {
 					int    port     = Integer.parseInt(args[3]);
 					String OTP      = args[4];
 
-					UDPKnock(hostname, port, OTP);
+					if (args.length == 6) {
+						byte[] payload = encodeOTP(OTP, args[5]);
+						if (payload != null)
+							UDPKnock(hostname, port, payload);
+					} else {
+						UDPKnock(hostname, port, OTP.getBytes());
+					}
 				}
 			} else if (knockType.equals("portseq")) {
 				if (args.length != 4) {
@@ -82,14 +89,43 @@ class clCOKnocker {
 		}
 	}
 
+	/**
+	 * Re-encode an OTP given as six words or hex
+	 *
+	 * @param OTP    OTP calculated elsewhere
+	 * @param format "words", "hex" or "binary"
+	 *
+	 * @return the payload to send, or null if either argument is bad
+	 */
+	private static byte[] encodeOTP(String OTP, String format) {
+		long folded;
+		try {
+			folded = MDC.otpToLong(OTP);
+		} catch (IllegalArgumentException e) {
+			System.out.println("IllegalArgumentException: " + e.getMessage());
+			return null;
+		}
+
+		if (format.equals("words"))
+			return MDC.toReadable(folded).getBytes();
+		else if (format.equals("hex"))
+			return MDC.toHex(folded).getBytes();
+		else if (format.equals("binary"))
+			return MDC.toBinary(folded);
+
+		System.out.println("Unknown OTP format: " + format);
+		usage();
+		return null;
+	}
+
 	/**
 	 * Send a UDP OTP Knock with appropriate params
 	 *
 	 * @param hostname Host running COKd
 	 * @param port     Port on which the knock is bound
-	 * @param OTP      OTP calculated elsewhere
+	 * @param payload  OTP calculated elsewhere, encoded
 	 */
-	private static void UDPKnock(String hostname, int port, String OTP) {
+	private static void UDPKnock(String hostname, int port, byte[] payload) {
 		try {
 			DatagramSocket  socket;
 			DatagramPacket  packet;
@@ -97,7 +133,7 @@ class clCOKnocker {
 			
 			socket = new DatagramSocket();
 			address = InetAddress.getByName(hostname);
-			packet = new DatagramPacket(OTP.getBytes(), OTP.length(),
+			packet = new DatagramPacket(payload, payload.length,
 										address, port);
 			socket.send(packet);
 			socket.close();
@@ -139,7 +175,7 @@ class clCOKnocker {
 	public static void usage() {
 		System.out.println("COKnocker CLI Usage: %java -jar coknocker.jar -c [knock type] [knock type options]");
 		System.out.println("  Knock Types: udp, portseq");
-		System.out.println("  udp options:     <hostname> <port> <OTP>");
+		System.out.println("  udp options:     <hostname> <port> <OTP> [words|hex|binary]");
 		System.out.println("  portseq options: <hostname> <port sequence>");
 	}
 	
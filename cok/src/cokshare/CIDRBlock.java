@@ -40,6 +40,9 @@ import java.io.Serializable;
  */
 public class CIDRBlock implements Serializable {
 
+	/** pinned, CIDRBlocks travel inside every stored knock descriptor */
+	private static final long serialVersionUID = -3678971804890127503L;
+
 	private long min=0, max=0;
 	private int masklen = 32;
 
@@ -116,6 +119,17 @@ public class CIDRBlock implements Serializable {
 		return retval;
 	}
 
+	/**
+	 * Check if this cidr block contains an IPv4 address given as an
+	 * int, without any parsing
+	 *
+	 * @param addr the address, most significant octet first
+	 */
+	public boolean contains(int addr) {
+		long iplong = addr & 0xffffffffL;
+		return iplong >= min && iplong <= max;
+	}
+
 	public boolean equals(CIDRBlock cidr) {
 		boolean retval = false;
 
@@ -44,6 +44,9 @@ import java.util.*;
  */
 public class DNSKnockDescriptor extends UDP_OTP_KnockDescriptor {
 
+	/** pinned, as in UDP_OTP_KnockDescriptor */
+	private static final long serialVersionUID = -2668621203910346761L;
+
 	/** Host suffix specifying the knock domain */
 	protected String knockDomain;
 
@@ -130,6 +133,7 @@ public class DNSKnockDescriptor extends UDP_OTP_KnockDescriptor {
 			setSuccessRules(dnsdesc.getSuccessRules());
 			setBadSourceRules(dnsdesc.getBadSourceRules());
 			setReplayRules(dnsdesc.getReplayRules());
+			setLookAhead(dnsdesc.getLookAhead());
 		}
 	}
 
@@ -161,4 +165,9 @@ public class DNSKnockDescriptor extends UDP_OTP_KnockDescriptor {
 
 		return equals;
 	}
+
+	/** hashCode to go with equals, includes the knock domain */
+	public int hashCode() {
+		return super.hashCode() ^ knockDomain.hashCode();
+	}
 }
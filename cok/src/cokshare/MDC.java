@@ -33,6 +33,8 @@
 package cokshare;
 
 import java.security.*;
+import java.util.HashMap;
+import java.util.Vector;
 
 import net.sourceforge.jpcap.util.*;
 
@@ -58,8 +60,18 @@ public class MDC {
 	 * @return a String containing the "human readable" block as needed!
 	 */
 	public static String toReadable(byte[] foldedDigest) {		
-		long folded = foldedToLong(foldedDigest);
+		return toReadable(foldedToLong(foldedDigest));
+	}
 
+	/**
+	 * Given a folded digest as a long, convert it to human readable
+	 * words
+	 *
+	 * @param folded the folded digest, first byte most significant
+	 *
+	 * @return a String containing the "human readable" block
+	 */
+	public static String toReadable(long folded) {
 		long tmplong = folded;
 		String readable = "";
 		int i, j;
@@ -93,6 +105,23 @@ public class MDC {
 	 * dictionary.
 	 */
 	public static byte[] fromReadable(String readable) 
+		throws IllegalArgumentException {
+		return longToFolded(readableToLong(readable));
+	}
+
+	/**
+	 * Given a string containing a "human readable" OTP convert it back
+	 * to a folded digest held in a long
+	 *
+	 * @param readable String containing the "human readable" OTP
+	 * 
+	 * @return the folded digest, first byte most significant
+	 *
+	 * @throws IllegalArgumentException if the string provided is not
+	 * 6 words or if a word in the string is not in the OTP
+	 * dictionary.
+	 */
+	public static long readableToLong(String readable) 
 		throws IllegalArgumentException {
 		readable = readable.toUpperCase();
 		String[] easywords = readable.split("\\s+");
@@ -100,30 +129,309 @@ public class MDC {
 		if (easywords.length != 6)
 			throw new IllegalArgumentException("fromReadable() : expected 6 words in a string separated by whitespace: [" + readable + "]");
 
-		byte[] digest = new byte[8];
 		long tmpdigest = 0;
 
 		for (int x = 0; x < easywords.length - 1; x++) {
-			int index = findWordLinear(easywords[x]);
+			int index = findWord(packWord(easywords[x]));
 			if (index == -1) 
 				throw new IllegalArgumentException("fromReadable() : Word \""+easywords[x]+"\" not found in OTP Dictionary!");
 			tmpdigest = (tmpdigest << 11 ) | (index & 0x7ff);
 
 		}
 
-		int index = findWordLinear(easywords[easywords.length - 1]);
+		int index = findWord(packWord(easywords[easywords.length - 1]));
 		if (index == -1)
 			throw new IllegalArgumentException("Word \""+easywords[easywords.length-1]+"\" not found in OTP Dictionary!");
 		tmpdigest = (tmpdigest << 9 ) | ((index & 0x7fc)>>2);
-			   
-		for (int x = 7; x >= 0; x--) {
-			digest[x] = (byte)(tmpdigest & 0xff);
-			tmpdigest >>= 8;
+
+		return tmpdigest;
+	}
+
+	/**
+	 * Decode a "human readable" OTP straight out of a byte buffer
+	 * (i.e. a packet payload) into a folded digest.  This accepts
+	 * exactly what <code>fromReadable(String)</code> accepts, but
+	 * builds no Strings, throws nothing and allocates nothing, so
+	 * it is cheap to call on every packet.
+	 *
+	 * @param data   buffer holding the readable OTP, in ASCII
+	 * @param offset offset of the OTP in data
+	 * @param length length of the OTP in bytes
+	 * @param otp    otp[0] is set to the folded digest, first byte
+	 *   most significant
+	 *
+	 * @return true if the bytes were 6 dictionary words and otp[0]
+	 *   has been filled in, false otherwise
+	 */
+	public static boolean fromReadable(byte[] data, int offset, int length, long[] otp) {
+		int end = offset + length;
+		int pos = offset;
+		long tmpdigest = 0;
+
+		for (int word = 0; word < 6; word++) {
+			if (word > 0) {
+				if (pos >= end || !isSpace(data[pos]))
+					return false;
+				while (pos < end && isSpace(data[pos]))
+					pos++;
+			}
+
+			int key = 0;
+			int chars = 0;
+			while (pos < end && !isSpace(data[pos])) {
+				int c = data[pos++] & 0xff;
+				if (c >= 'a' && c <= 'z')
+					c -= 'a' - 'A';
+				if (c < 'A' || c > 'Z' || ++chars > 4)
+					return false;
+				key = (key << 5) | (c - 'A' + 1);
+			}
+
+			int index = findWord(key);
+			if (index == -1)
+				return false;
+
+			if (word < 5)
+				tmpdigest = (tmpdigest << 11) | index;
+			else
+				tmpdigest = (tmpdigest << 9) | (index >> 2);
 		}
 
-		return digest;
+		while (pos < end && isSpace(data[pos]))
+			pos++;
+		if (pos != end)
+			return false;
+
+		otp[0] = tmpdigest;
+		return true;
+	}
+
+	/** @return true if b is whitespace as matched by the regex \s */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0b;
+	}
+
+	/**
+	 * Check, in one pass and without any dictionary lookups, whether
+	 * a payload is shaped like an OTP <code>decodeOTP()</code> might
+	 * accept: the binary tag, six runs of at most four letters, or
+	 * 16 hex digits.  '_' separates words as whitespace does, as in
+	 * DNS knocks.  A false answer is final; a true one still needs
+	 * decoding.
+	 *
+	 * @param data   buffer holding the payload
+	 * @param offset offset of the payload in data
+	 * @param length length of the payload in bytes
+	 *
+	 * @return false if the payload cannot be an OTP
+	 */
+	public static boolean otpShaped(byte[] data, int offset, int length) {
+		if (length == BINARY_LENGTH && data[offset] == BINARY_TAG0)
+			return data[offset+1] == BINARY_TAG1;
+
+		int end = offset + length;
+		int pos = offset;
+		boolean hexPrefix = length > 4 && (data[pos] | 0x20) == 'h' &&
+			(data[pos+1] | 0x20) == 'e' && (data[pos+2] | 0x20) == 'x' && data[pos+3] == ':';
+		if (hexPrefix)
+			pos += 4;
+
+		// give up as soon as the payload can be neither words nor hex
+		boolean words = !hexPrefix, hex = true;
+		int count = 0, run = 0, hexDigits = 0;
+		for (; pos < end; pos++) {
+			int shape = SHAPES[data[pos] & 0xff];
+			if (shape == SHAPE_SPACE) {
+				run = 0;
+				continue;
+			}
+			if (shape == SHAPE_NONE)
+				return false;
+
+			if (run++ == 0 && ++count > 6)
+				words = false;
+			if (run > 4)
+				words = false;
+			if (shape == SHAPE_LETTER)
+				hex = false;
+			else if (++hexDigits > 16)
+				hex = false;
+			if (shape == SHAPE_DIGIT)
+				words = false;
+			if (!words && !hex)
+				return false;
+		}
+
+		return (words && count == 6) || (hex && hexDigits == 16);
 	}
 
+	/** byte classes for otpShaped() */
+	private static final byte SHAPE_NONE = 0, SHAPE_SPACE = 1, SHAPE_LETTER = 2,
+		SHAPE_HEX_LETTER = 3, SHAPE_DIGIT = 4;
+	/** the class of each byte value */
+	private static final byte[] SHAPES = new byte[256];
+	static {
+		for (int c = 'A'; c <= 'Z'; c++) {
+			SHAPES[c] = (c <= 'F') ? SHAPE_HEX_LETTER : SHAPE_LETTER;
+			SHAPES[c + ('a' - 'A')] = SHAPES[c];
+		}
+		for (int c = '0'; c <= '9'; c++)
+			SHAPES[c] = SHAPE_DIGIT;
+		SHAPES[' '] = SHAPES['\t'] = SHAPES['\n'] = SHAPES['\r'] = SHAPES['\f'] =
+			SHAPES[0x0b] = SHAPES['_'] = SHAPE_SPACE;
+	}
+
+	/** length of a binary OTP: the two tag bytes, then the OTP */
+	public static final int BINARY_LENGTH = 10;
+	/** first byte of a binary OTP */
+	public static final byte BINARY_TAG0 = (byte)0xc0;
+	/** second byte of a binary OTP, 'K' */
+	public static final byte BINARY_TAG1 = (byte)0x4b;
+
+	/**
+	 * Decode an OTP in any of the forms COKd accepts straight out of
+	 * a byte buffer: a payload of exactly BINARY_LENGTH bytes must be
+	 * binary, anything else six words or hex.  Like
+	 * <code>fromReadable()</code> this throws nothing and allocates
+	 * nothing.
+	 *
+	 * @param data   buffer holding the OTP
+	 * @param offset offset of the OTP in data
+	 * @param length length of the OTP in bytes
+	 * @param otp    otp[0] is set to the folded digest
+	 *
+	 * @return true if otp[0] has been filled in
+	 */
+	public static boolean decodeOTP(byte[] data, int offset, int length, long[] otp) {
+		if (length == BINARY_LENGTH)
+			return fromBinary(data, offset, length, otp);
+		return fromReadable(data, offset, length, otp) || fromHex(data, offset, length, otp);
+	}
+
+	/**
+	 * Decode the hex form of an OTP from RFC 2289: 16 hex digits in
+	 * either case, with any whitespace between them, optionally after
+	 * the "hex:" of an extended response (RFC 2243).
+	 *
+	 * @param data   buffer holding the hex OTP, in ASCII
+	 * @param offset offset of the OTP in data
+	 * @param length length of the OTP in bytes
+	 * @param otp    otp[0] is set to the folded digest
+	 *
+	 * @return true if the bytes were 16 hex digits and otp[0] has
+	 *   been filled in, false otherwise
+	 */
+	public static boolean fromHex(byte[] data, int offset, int length, long[] otp) {
+		int end = offset + length;
+		int pos = offset;
+		if (length > 4 && (data[pos] | 0x20) == 'h' && (data[pos+1] | 0x20) == 'e' &&
+			(data[pos+2] | 0x20) == 'x' && data[pos+3] == ':')
+			pos += 4;
+
+		long tmpdigest = 0;
+		int digits = 0;
+		for (; pos < end; pos++) {
+			int c = data[pos] & 0xff;
+			int value;
+			if (c >= '0' && c <= '9')
+				value = c - '0';
+			else if ((c | 0x20) >= 'a' && (c | 0x20) <= 'f')
+				value = (c | 0x20) - 'a' + 10;
+			else if (isSpace(data[pos]))
+				continue;
+			else
+				return false;
+
+			if (++digits > 16)
+				return false;
+			tmpdigest = (tmpdigest << 4) | value;
+		}
+		if (digits != 16)
+			return false;
+
+		otp[0] = tmpdigest;
+		return true;
+	}
+
+	/**
+	 * Decode a binary OTP: BINARY_TAG0, BINARY_TAG1, then the folded
+	 * digest most significant byte first
+	 *
+	 * @param data   buffer holding the binary OTP
+	 * @param offset offset of the OTP in data
+	 * @param length length of the OTP in bytes
+	 * @param otp    otp[0] is set to the folded digest
+	 *
+	 * @return true if the bytes were a binary OTP and otp[0] has been
+	 *   filled in, false otherwise
+	 */
+	public static boolean fromBinary(byte[] data, int offset, int length, long[] otp) {
+		if (length != BINARY_LENGTH || data[offset] != BINARY_TAG0 ||
+			data[offset+1] != BINARY_TAG1)
+			return false;
+
+		long tmpdigest = 0;
+		for (int x = 2; x < BINARY_LENGTH; x++)
+			tmpdigest = (tmpdigest << 8) | (data[offset+x] & 0xff);
+
+		otp[0] = tmpdigest;
+		return true;
+	}
+
+	/**
+	 * Given a folded digest, write it in the hex form of RFC 2289,
+	 * e.g. "9E87 6134 D904 99DD"
+	 *
+	 * @param folded the folded digest, first byte most significant
+	 *
+	 * @return the digest as four groups of four hex digits
+	 */
+	public static String toHex(long folded) {
+		StringBuffer hex = new StringBuffer(19);
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			hex.append(Character.toUpperCase(Character.forDigit((int)(folded >>> shift) & 0xf, 16)));
+			if (shift % 16 == 0 && shift > 0)
+				hex.append(' ');
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Given a folded digest, build its binary form
+	 *
+	 * @param folded the folded digest, first byte most significant
+	 *
+	 * @return BINARY_LENGTH bytes holding the tag and digest
+	 */
+	public static byte[] toBinary(long folded) {
+		byte[] binary = new byte[BINARY_LENGTH];
+		binary[0] = BINARY_TAG0;
+		binary[1] = BINARY_TAG1;
+		for (int x = BINARY_LENGTH - 1; x >= 2; x--) {
+			binary[x] = (byte)folded;
+			folded >>>= 8;
+		}
+		return binary;
+	}
+
+	/**
+	 * Given a string holding an OTP as six words or hex, convert it
+	 * to a folded digest held in a long
+	 *
+	 * @param otp String containing the OTP
+	 *
+	 * @return the folded digest, first byte most significant
+	 *
+	 * @throws IllegalArgumentException if the string is neither
+	 */
+	public static long otpToLong(String otp) throws IllegalArgumentException {
+		byte[] data = otp.getBytes();
+		long[] decoded = new long[1];
+		if (!fromReadable(data, 0, data.length, decoded) &&
+			!fromHex(data, 0, data.length, decoded))
+			throw new IllegalArgumentException("otpToLong() : not six words or 16 hex digits: [" + otp + "]");
+		return decoded[0];
+	}
 
 	/**
 	 * get an OTPData structure with <code>number</code> of human-readable
@@ -153,14 +461,15 @@ public class MDC {
 		OTPData retdata = new OTPData();
 		retdata.readablePasswords = new String[number];
 		
-		MessageDigest digester = MessageDigest.getInstance(algorithm);
+		MessageDigest digester = getDigester(algorithm);
 		
-		byte[] OTPbytes = passphrase.getBytes();
+		byte[] digest = digester.digest(passphrase.getBytes());
+		long otp = foldDigest(algorithm, digest, 0, digest.length);
 		for (int x = number - 1; x >= 0; x--) {
-			OTPbytes = foldHash(algorithm, digester.digest(OTPbytes));
-			retdata.readablePasswords[x] = toReadable(OTPbytes);
+			retdata.readablePasswords[x] = toReadable(otp);
+			otp = hashAndFold(algorithm, digester, otp);
 		}
-		retdata.firstOTP = foldHash(algorithm, digester.digest(OTPbytes));
+		retdata.firstOTP = longToFolded(otp);
 		
 		return retdata;
 	}
@@ -171,7 +480,8 @@ public class MDC {
 	 * in RFC 2289 Appendix A).
 	 *
 	 * @param algorithm JCE standard algorith name.  Currently supported
-	 *   are "MD5" and "SHA1"
+	 *   are "MD5", "SHA1", "SHA-256", "SHA-512" and "SHA3-256" (see
+	 *   ALGORITHMS for the ones this VM can digest)
 	 *
 	 * @param digest output from a given MessageDigest object
 	 *
@@ -183,58 +493,588 @@ public class MDC {
 	public static byte[] foldHash(String algorithm, byte[] digest) 
 		throws NoSuchAlgorithmException 
 	{
-		byte[] foldedDigest = new byte[0];
+		return longToFolded(foldDigest(algorithm, digest, 0, digest.length));
+	}
+
+	/**
+	 * Fold a digest sitting in a buffer into a long, without
+	 * allocating anything
+	 *
+	 * @param algorithm one of the algorithms foldHash() supports
+	 * @param digest    buffer holding the digest
+	 * @param offset    offset of the digest in the buffer
+	 * @param length    length of the digest
+	 *
+	 * @return the folded digest, first byte most significant
+	 *
+	 * @throws NoSuchAlgorithmException if algorithm does not have
+	 *   and associated folding routine.
+	 */
+	public static long foldDigest(String algorithm, byte[] digest, int offset, int length)
+		throws NoSuchAlgorithmException 
+	{
 		if (algorithm.equals("MD5"))
-			foldedDigest = foldMD5(digest);
+			return foldMD5(digest, offset, length);
 		else if (algorithm.equals("SHA1"))
-			foldedDigest = foldSHA1(digest);
+			return foldSHA1(digest, offset, length);
+		else if (algorithm.equals("SHA-256") || algorithm.equals("SHA3-256"))
+			return foldWords(algorithm, digest, offset, length, 32);
+		else if (algorithm.equals("SHA-512"))
+			return foldWords(algorithm, digest, offset, length, 64);
 		else
 			throw new NoSuchAlgorithmException("foldHash() : Unknown algorithm - " + algorithm);
-		
-		return foldedDigest;
 	}
 
 	/**
-	 * Do a linear search through the OTP dictionary for a given word
+	 * Get the calling thread's digester for an algorithm.  Digesters
+	 * are not thread safe, so each thread keeps its own, created the
+	 * first time it asks; evaluating threads never contend for one.
+	 * The digester is always left reset between calls.
 	 *
-	 * @param word the word to search for
+	 * @param algorithm JCE algorithm name
+	 *
+	 * @return a digester for algorithm owned by the calling thread
+	 *
+	 * @throws NoSuchAlgorithmException if the VM has no such digester
+	 */
+	public static MessageDigest getDigester(String algorithm) 
+		throws NoSuchAlgorithmException 
+	{
+		HashMap pool = (HashMap)digesterPools.get();
+		MessageDigest digester = (MessageDigest)pool.get(algorithm);
+		if (digester == null) {
+			digester = MessageDigest.getInstance(algorithm);
+			pool.put(algorithm, digester);
+		}
+		return digester;
+	}
+
+	/** per thread map of algorithm name to digester, for getDigester() */
+	private static final ThreadLocal digesterPools = new ThreadLocal() {
+			protected Object initialValue() { return new HashMap(); }
+		};
+
+	/**
+	 * Step a one-time-password chain: hash a folded OTP and fold the
+	 * result.  MD5 and SHA1 go through stepMD5() and stepSHA1() where
+	 * those are faster than the digester (see HASH_KERNELS); otherwise
+	 * the digest is built in a buffer kept per thread.  Either way
+	 * nothing is allocated.
+	 *
+	 * @param algorithm one of the algorithms foldHash() supports
+	 * @param digester  a digester for algorithm, owned by the caller
+	 * @param otp       the folded OTP to hash
+	 *
+	 * @return the folded hash of otp
+	 *
+	 * @throws NoSuchAlgorithmException if algorithm does not have
+	 *   and associated folding routine.
+	 */
+	public static long hashAndFold(String algorithm, MessageDigest digester, long otp)
+		throws NoSuchAlgorithmException 
+	{
+		if (HASH_KERNELS) {
+			if (algorithm.equals("MD5"))
+				return stepMD5(otp);
+			else if (algorithm.equals("SHA1"))
+				return stepSHA1(otp);
+		}
+
+		byte[] buffer = (byte[])digestBuffers.get();
+		for (int shift = 56; shift >= 0; shift -= 8)
+			digester.update((byte)(otp >>> shift));
+
+		int length;
+		try {
+			length = digester.digest(buffer, 0, buffer.length);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException("hashAndFold() : " + e.getMessage());
+		}
+		return foldDigest(algorithm, buffer, 0, length);
+	}
+
+	/** buffer each thread builds digests in for hashAndFold() */
+	private static final ThreadLocal digestBuffers = new ThreadLocal() {
+			protected Object initialValue() { return new byte[64]; }
+		};
+
+	/**
+	 * Whether hashAndFold() uses stepMD5() and stepSHA1().  They beat
+	 * the JCA digesters written in Java, but not the ones newer VMs
+	 * (16 on) compile to hand written code, so by default they are
+	 * only used on older VMs.  The cok.hashKernels system property,
+	 * "true" or "false", overrides this.
+	 */
+	public static final boolean HASH_KERNELS = useHashKernels();
+
+	private static boolean useHashKernels() {
+		String forced = System.getProperty("cok.hashKernels");
+		if (forced != null)
+			return forced.equals("true");
+
+		String version = System.getProperty("java.specification.version", "1.4");
+		try {
+			return version.startsWith("1.") || Integer.parseInt(version) < 16;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/*
+	 * An OTP is always 8 bytes, which MD5 and SHA1 pad to exactly one
+	 * 64 byte block: the 8 bytes, 0x80, zeros, and a bit length of 64.
+	 * Only the first two message words vary, so the compression
+	 * functions below are unrolled with the padding words (and the
+	 * all zero words) folded into the round constants.
+	 */
+
+	/**
+	 * MD5 an OTP and fold the digest, as
+	 * <code>foldHash("MD5", md5(otp))</code> but without the JCA
+	 *
+	 * @param otp a folded OTP, first byte most significant
+	 *
+	 * @return the folded MD5 of otp
+	 */
+	public static long stepMD5(long otp) {
+		// message words are little endian
+		int m0 = Integer.reverseBytes((int)(otp >>> 32));
+		int m1 = Integer.reverseBytes((int)otp);
+
+		int a = 0x67452301;
+		int b = 0xefcdab89;
+		int c = 0x98badcfe;
+		int d = 0x10325476;
+
+		a = ff(a, b, c, d, m0 + 0xd76aa478, 7);
+		d = ff(d, a, b, c, m1 + 0xe8c7b756, 12);
+		c = ff(c, d, a, b, 0x2420715b, 17);
+		b = ff(b, c, d, a, 0xc1bdceee, 22);
+		a = ff(a, b, c, d, 0xf57c0faf, 7);
+		d = ff(d, a, b, c, 0x4787c62a, 12);
+		c = ff(c, d, a, b, 0xa8304613, 17);
+		b = ff(b, c, d, a, 0xfd469501, 22);
+		a = ff(a, b, c, d, 0x698098d8, 7);
+		d = ff(d, a, b, c, 0x8b44f7af, 12);
+		c = ff(c, d, a, b, 0xffff5bb1, 17);
+		b = ff(b, c, d, a, 0x895cd7be, 22);
+		a = ff(a, b, c, d, 0x6b901122, 7);
+		d = ff(d, a, b, c, 0xfd987193, 12);
+		c = ff(c, d, a, b, 0xa67943ce, 17);
+		b = ff(b, c, d, a, 0x49b40821, 22);
+
+		a = gg(a, b, c, d, m1 + 0xf61e2562, 5);
+		d = gg(d, a, b, c, 0xc040b340, 9);
+		c = gg(c, d, a, b, 0x265e5a51, 14);
+		b = gg(b, c, d, a, m0 + 0xe9b6c7aa, 20);
+		a = gg(a, b, c, d, 0xd62f105d, 5);
+		d = gg(d, a, b, c, 0x02441453, 9);
+		c = gg(c, d, a, b, 0xd8a1e681, 14);
+		b = gg(b, c, d, a, 0xe7d3fbc8, 20);
+		a = gg(a, b, c, d, 0x21e1cde6, 5);
+		d = gg(d, a, b, c, 0xc3370816, 9);
+		c = gg(c, d, a, b, 0xf4d50d87, 14);
+		b = gg(b, c, d, a, 0x455a14ed, 20);
+		a = gg(a, b, c, d, 0xa9e3e905, 5);
+		d = gg(d, a, b, c, 0xfcefa478, 9);
+		c = gg(c, d, a, b, 0x676f02d9, 14);
+		b = gg(b, c, d, a, 0x8d2a4c8a, 20);
+
+		a = hh(a, b, c, d, 0xfffa3942, 4);
+		d = hh(d, a, b, c, 0x8771f681, 11);
+		c = hh(c, d, a, b, 0x6d9d6122, 16);
+		b = hh(b, c, d, a, 0xfde5384c, 23);
+		a = hh(a, b, c, d, m1 + 0xa4beea44, 4);
+		d = hh(d, a, b, c, 0x4bdecfa9, 11);
+		c = hh(c, d, a, b, 0xf6bb4b60, 16);
+		b = hh(b, c, d, a, 0xbebfbc70, 23);
+		a = hh(a, b, c, d, 0x289b7ec6, 4);
+		d = hh(d, a, b, c, m0 + 0xeaa127fa, 11);
+		c = hh(c, d, a, b, 0xd4ef3085, 16);
+		b = hh(b, c, d, a, 0x04881d05, 23);
+		a = hh(a, b, c, d, 0xd9d4d039, 4);
+		d = hh(d, a, b, c, 0xe6db99e5, 11);
+		c = hh(c, d, a, b, 0x1fa27cf8, 16);
+		b = hh(b, c, d, a, 0xc4ac56e5, 23);
+
+		a = ii(a, b, c, d, m0 + 0xf4292244, 6);
+		d = ii(d, a, b, c, 0x432aff97, 10);
+		c = ii(c, d, a, b, 0xab9423e7, 15);
+		b = ii(b, c, d, a, 0xfc93a039, 21);
+		a = ii(a, b, c, d, 0x655b59c3, 6);
+		d = ii(d, a, b, c, 0x8f0ccc92, 10);
+		c = ii(c, d, a, b, 0xffeff47d, 15);
+		b = ii(b, c, d, a, m1 + 0x85845dd1, 21);
+		a = ii(a, b, c, d, 0x6fa87e4f, 6);
+		d = ii(d, a, b, c, 0xfe2ce6e0, 10);
+		c = ii(c, d, a, b, 0xa3014314, 15);
+		b = ii(b, c, d, a, 0x4e0811a1, 21);
+		a = ii(a, b, c, d, 0xf7537e82, 6);
+		d = ii(d, a, b, c, 0xbd3af235, 10);
+		c = ii(c, d, a, b, 0x2ad7d33b, 15);
+		b = ii(b, c, d, a, 0xeb86d391, 21);
+
+		a += 0x67452301;
+		b += 0xefcdab89;
+		c += 0x98badcfe;
+		d += 0x10325476;
+
+		// the digest is a b c d little endian, fold the halves together
+		return ((long)Integer.reverseBytes(a ^ c) << 32) |
+			(Integer.reverseBytes(b ^ d) & 0xffffffffL);
+	}
+
+	private static int ff(int a, int b, int c, int d, int x, int s) {
+		return b + Integer.rotateLeft(a + x + (d ^ (b & (c ^ d))), s);
+	}
+
+	private static int gg(int a, int b, int c, int d, int x, int s) {
+		return b + Integer.rotateLeft(a + x + (c & ~d) + (b & d), s);
+	}
+
+	private static int hh(int a, int b, int c, int d, int x, int s) {
+		return b + Integer.rotateLeft(a + x + (b ^ (c ^ d)), s);
+	}
+
+	private static int ii(int a, int b, int c, int d, int x, int s) {
+		return b + Integer.rotateLeft(a + x + (c ^ (b | ~d)), s);
+	}
+
+	/**
+	 * SHA1 an OTP and fold the digest, as
+	 * <code>foldHash("SHA1", sha1(otp))</code> but without the JCA
+	 *
+	 * @param otp a folded OTP, first byte most significant
+	 *
+	 * @return the folded SHA1 of otp
+	 */
+	public static long stepSHA1(long otp) {
+		// message words are big endian, the schedule is kept in
+		// w0..w15 and only written once it is past the padding
+		int m0 = (int)(otp >>> 32);
+		int m1 = (int)otp;
+		int w0, w1, w2, w3, w4, w5, w6, w7, w8, w9, w10, w11, w12, w13, w14, w15;
+
+		int a = 0x67452301;
+		int b = 0xefcdab89;
+		int c = 0x98badcfe;
+		int d = 0x10325476;
+		int e = 0xc3d2e1f0;
+
+		e = e + 0x5a827999 + m0 + f1(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		d = d + 0x5a827999 + m1 + f1(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		c = c + 0x5a827999 + 0x80000000 + f1(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		b = b + 0x5a827999 + f1(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		a = a + 0x5a827999 + f1(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		e = e + 0x5a827999 + f1(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		d = d + 0x5a827999 + f1(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		c = c + 0x5a827999 + f1(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		b = b + 0x5a827999 + f1(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		a = a + 0x5a827999 + f1(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		e = e + 0x5a827999 + f1(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		d = d + 0x5a827999 + f1(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		c = c + 0x5a827999 + f1(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		b = b + 0x5a827999 + f1(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		a = a + 0x5a827999 + f1(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		e = e + 0x5a827999 + 64 + f1(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w0 = Integer.rotateLeft(0x80000000 ^ m0, 1);
+		d = d + 0x5a827999 + w0 + f1(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w1 = Integer.rotateLeft(m1, 1);
+		c = c + 0x5a827999 + w1 + f1(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w2 = Integer.rotateLeft(64 ^ 0x80000000, 1);
+		b = b + 0x5a827999 + w2 + f1(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w3 = Integer.rotateLeft(w0, 1);
+		a = a + 0x5a827999 + w3 + f1(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+
+		w4 = Integer.rotateLeft(w1, 1);
+		e = e + 0x6ed9eba1 + w4 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w5 = Integer.rotateLeft(w2, 1);
+		d = d + 0x6ed9eba1 + w5 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w6 = Integer.rotateLeft(w3, 1);
+		c = c + 0x6ed9eba1 + w6 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w7 = Integer.rotateLeft(w4 ^ 64, 1);
+		b = b + 0x6ed9eba1 + w7 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w8 = Integer.rotateLeft(w5 ^ w0, 1);
+		a = a + 0x6ed9eba1 + w8 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w9 = Integer.rotateLeft(w6 ^ w1, 1);
+		e = e + 0x6ed9eba1 + w9 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w10 = Integer.rotateLeft(w7 ^ w2, 1);
+		d = d + 0x6ed9eba1 + w10 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w11 = Integer.rotateLeft(w8 ^ w3, 1);
+		c = c + 0x6ed9eba1 + w11 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w12 = Integer.rotateLeft(w9 ^ w4, 1);
+		b = b + 0x6ed9eba1 + w12 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w13 = Integer.rotateLeft(w10 ^ w5 ^ 64, 1);
+		a = a + 0x6ed9eba1 + w13 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w14 = Integer.rotateLeft(w11 ^ w6 ^ w0, 1);
+		e = e + 0x6ed9eba1 + w14 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ 64, 1);
+		d = d + 0x6ed9eba1 + w15 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+		c = c + 0x6ed9eba1 + w0 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+		b = b + 0x6ed9eba1 + w1 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+		a = a + 0x6ed9eba1 + w2 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+		e = e + 0x6ed9eba1 + w3 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+		d = d + 0x6ed9eba1 + w4 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+		c = c + 0x6ed9eba1 + w5 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+		b = b + 0x6ed9eba1 + w6 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+		a = a + 0x6ed9eba1 + w7 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+
+		w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+		e = e + 0x8f1bbcdc + w8 + f3(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+		d = d + 0x8f1bbcdc + w9 + f3(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+		c = c + 0x8f1bbcdc + w10 + f3(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+		b = b + 0x8f1bbcdc + w11 + f3(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+		a = a + 0x8f1bbcdc + w12 + f3(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+		e = e + 0x8f1bbcdc + w13 + f3(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+		d = d + 0x8f1bbcdc + w14 + f3(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+		c = c + 0x8f1bbcdc + w15 + f3(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+		b = b + 0x8f1bbcdc + w0 + f3(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+		a = a + 0x8f1bbcdc + w1 + f3(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+		e = e + 0x8f1bbcdc + w2 + f3(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+		d = d + 0x8f1bbcdc + w3 + f3(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+		c = c + 0x8f1bbcdc + w4 + f3(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+		b = b + 0x8f1bbcdc + w5 + f3(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+		a = a + 0x8f1bbcdc + w6 + f3(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+		e = e + 0x8f1bbcdc + w7 + f3(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+		d = d + 0x8f1bbcdc + w8 + f3(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+		c = c + 0x8f1bbcdc + w9 + f3(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+		b = b + 0x8f1bbcdc + w10 + f3(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+		a = a + 0x8f1bbcdc + w11 + f3(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+
+		w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+		e = e + 0xca62c1d6 + w12 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+		d = d + 0xca62c1d6 + w13 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+		c = c + 0xca62c1d6 + w14 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+		b = b + 0xca62c1d6 + w15 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+		a = a + 0xca62c1d6 + w0 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+		e = e + 0xca62c1d6 + w1 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+		d = d + 0xca62c1d6 + w2 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+		c = c + 0xca62c1d6 + w3 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+		b = b + 0xca62c1d6 + w4 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+		a = a + 0xca62c1d6 + w5 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+		e = e + 0xca62c1d6 + w6 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+		d = d + 0xca62c1d6 + w7 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+		c = c + 0xca62c1d6 + w8 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+		b = b + 0xca62c1d6 + w9 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+		a = a + 0xca62c1d6 + w10 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+		w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+		e = e + 0xca62c1d6 + w11 + f2(b, c, d) + Integer.rotateLeft(a, 5);
+		b = Integer.rotateLeft(b, 30);
+		w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+		d = d + 0xca62c1d6 + w12 + f2(a, b, c) + Integer.rotateLeft(e, 5);
+		a = Integer.rotateLeft(a, 30);
+		w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+		c = c + 0xca62c1d6 + w13 + f2(e, a, b) + Integer.rotateLeft(d, 5);
+		e = Integer.rotateLeft(e, 30);
+		w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+		b = b + 0xca62c1d6 + w14 + f2(d, e, a) + Integer.rotateLeft(c, 5);
+		d = Integer.rotateLeft(d, 30);
+		w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+		a = a + 0xca62c1d6 + w15 + f2(c, d, e) + Integer.rotateLeft(b, 5);
+		c = Integer.rotateLeft(c, 30);
+
+		a += 0x67452301;
+		b += 0xefcdab89;
+		c += 0x98badcfe;
+		d += 0x10325476;
+		e += 0xc3d2e1f0;
+
+		// fold the five words into two, each taken least significant
+		// byte first
+		return ((long)Integer.reverseBytes(a ^ c ^ e) << 32) |
+			(Integer.reverseBytes(b ^ d) & 0xffffffffL);
+	}
+
+	private static int f1(int b, int c, int d) { return d ^ (b & (c ^ d)); }
+
+	private static int f2(int b, int c, int d) { return b ^ (c ^ d); }
+
+	private static int f3(int b, int c, int d) { return (b & (c | d)) | (c & d); }
+
+	/**
+	 * Pack a dictionary word into an int, 5 bits a letter (A is 1),
+	 * so that every word of up to 4 letters gets a distinct non-zero
+	 * key
+	 *
+	 * @param word the word to pack, upper case
+	 *
+	 * @return the packed key, or -1 if word can not be in the dictionary
+	 */
+	private static int packWord(String word) {
+		if (word.length() == 0 || word.length() > 4)
+			return -1;
+
+		int key = 0;
+		for (int x = 0; x < word.length(); x++) {
+			char c = word.charAt(x);
+			if (c < 'A' || c > 'Z')
+				return -1;
+			key = (key << 5) | (c - 'A' + 1);
+		}
+		return key;
+	}
+
+	/**
+	 * Look a packed word up in the hashed dictionary
+	 *
+	 * @param key a key from packWord()
 	 *
 	 * @return returns the index of words[] at which the word lies, or
 	 * -1 if the word was not found!
 	 */
-	private static int findWordLinear(String word) {
-		int retIndex = -1;
-		for (int y = 0; y < words.length; y++) {
-			if (words[y].equals(word)) { 
-				retIndex = y;
-				break;
-			}
+	private static int findWord(int key) {
+		int slot = wordSlot(key);
+		while (wordKeys[slot] != 0) {
+			if (wordKeys[slot] == key)
+				return wordIndexes[slot];
+			slot = (slot + 1) & (WORD_TABLE_SIZE - 1);
 		}
-		return retIndex;
+		return -1;
+	}
+
+	/** @return the home slot of a packed word in the hashed dictionary */
+	private static int wordSlot(int key) {
+		return (key * 0x9e3779b1) >>> (32 - WORD_TABLE_BITS);
 	}
 
 	/**
 	 * Fold an MD5 hash according to RFC spec
 	 *
-	 * @param digest byte[] containing an md5 hash (16 bytes long)
+	 * @param digest buffer containing an md5 hash (16 bytes long)
+	 * @param offset offset of the hash in digest
+	 * @param length length of the hash
 	 *
-	 * @return a byte[] of length 8 containing the folded hash (folded
-	 * according to RFC!)
+	 * @return a long containing the folded hash (folded according to
+	 * RFC!), first byte most significant
 	 *
 	 * @throws IllegalArgumentException if the digest passed is not 16
 	 * bytes long!
 	 */
-	private static byte[] foldMD5(byte[] digest) 
+	private static long foldMD5(byte[] digest, int offset, int length) 
 		throws IllegalArgumentException {	   
 
-		if (digest.length != 16)
-			throw new IllegalArgumentException("foldMD5() : MD5 Hash is not 16 bytes long! ("+digest.length+" bytes)");
-
-		byte[] result = new byte[8];
-
+		if (length != 16)
+			throw new IllegalArgumentException("foldMD5() : MD5 Hash is not 16 bytes long! ("+length+" bytes)");
 
+		long result = 0;
 		for (int x = 0; x < 8; x++)
-			result[x] = (byte)((digest[x] ^ digest[x+8])&0xff);
+			result = (result << 8) | ((digest[offset+x] ^ digest[offset+x+8]) & 0xff);
 
 		return result;
 	}
@@ -242,30 +1082,65 @@ public class MDC {
 	/**
 	 * Fold a SHA1 hash according to RFC spec
 	 *
-	 * @param digest byte[] containing a SHA1 hash (20 bytes long)
+	 * @param digest buffer containing a SHA1 hash (20 bytes long)
+	 * @param offset offset of the hash in digest
+	 * @param length length of the hash
 	 *
-	 * @return a byte[] of length 8 containing a folded hash (folded
-	 * according to RFC!)
+	 * @return a long containing a folded hash (folded according to
+	 * RFC!), first byte most significant
 	 *
 	 * @throws IllegalArgumentException if the digest passed is not 20
 	 * bytes long!
 	 */
-	private static byte[] foldSHA1(byte[] digest) 
+	private static long foldSHA1(byte[] digest, int offset, int length) 
 		throws IllegalArgumentException {
 
-		if (digest.length != 20)
-			throw new IllegalArgumentException("foldSHA1() : SHA1 Hash is not 20 bytes long! ("+digest.length+" bytes)");
+		if (length != 20)
+			throw new IllegalArgumentException("foldSHA1() : SHA1 Hash is not 20 bytes long! ("+length+" bytes)");
 
-		for (int x = 0; x < 4; x++) {
-			digest[x]   ^= digest[8  + x];
-			digest[x]   ^= digest[16 + x];
-			digest[4+x] ^= digest[12 + x];
-		}
+		// XOR the five words together (the last one into the first),
+		// then take each 4 byte half least significant byte first
+		long result = 0;
+		for (int x = 3; x >= 0; x--)
+			result = (result << 8) |
+				((digest[offset+x] ^ digest[offset+8+x] ^ digest[offset+16+x]) & 0xff);
+		for (int x = 3; x >= 0; x--)
+			result = (result << 8) | ((digest[offset+4+x] ^ digest[offset+12+x]) & 0xff);
+
+		return result;
+	}
+
+	/**
+	 * Fold a digest wider than SHA1 by XORing its 8 byte words
+	 * together, each read most significant byte first.  RFC 2289
+	 * only defines folds up to SHA1; this is the obvious extension
+	 * and is what the knocker and coktool compute as well.
+	 *
+	 * @param algorithm name of the algorithm, for the error message
+	 * @param digest    buffer containing the hash
+	 * @param offset    offset of the hash in digest
+	 * @param length    length of the hash
+	 * @param expected  length a hash of algorithm has
+	 *
+	 * @return a long containing the folded hash
+	 *
+	 * @throws IllegalArgumentException if the digest passed is not
+	 * expected bytes long!
+	 */
+	private static long foldWords(String algorithm, byte[] digest, int offset, 
+								  int length, int expected) 
+		throws IllegalArgumentException {
+
+		if (length != expected)
+			throw new IllegalArgumentException("foldWords() : " + algorithm + " Hash is not " + 
+											   expected + " bytes long! ("+length+" bytes)");
 
-		byte[] result = new byte[8];
-		for (int x = 0; x < 4; x++) {
-			result[x] = digest[4-x-1];
-			result[4+x] = digest[8-x-1];
+		long result = 0;
+		for (int word = offset; word < offset + length; word += 8) {
+			long value = 0;
+			for (int x = 0; x < 8; x++)
+				value = (value << 8) | (digest[word+x] & 0xff);
+			result ^= value;
 		}
 
 		return result;
@@ -280,7 +1155,7 @@ public class MDC {
 	 *
 	 * @throws IllegalArgumentException if digest is not 8 bytes long!
 	 */
-	private static long foldedToLong(byte[] digest) 
+	public static long foldedToLong(byte[] digest) 
 		throws IllegalArgumentException {
 
 		if (digest.length != 8)
@@ -294,6 +1169,22 @@ public class MDC {
 		return results;
 	}
 
+	/**
+	 * Given a folded digest as a long, convert it to 8 bytes
+	 *
+	 * @param folded the folded digest, first byte most significant
+	 *
+	 * @return a byte[8] containing the digest
+	 */
+	public static byte[] longToFolded(long folded) {
+		byte[] digest = new byte[8];
+		for (int x = 7; x >= 0; x--) {
+			digest[x] = (byte)(folded & 0xff);
+			folded >>>= 8;
+		}
+		return digest;
+	}
+
 	/** testing routine */
 	public static void main(String[] args) {
 
@@ -385,10 +1276,54 @@ public class MDC {
 			
 		}
 
+		{
+			String readable = "inch  Sea\tANNE long ahem TOUR\n";
+			long fromString = readableToLong(readable);
+			long[] fromBytes = new long[1];
+			boolean same = fromReadable(readable.getBytes(), 0, readable.length(), fromBytes) &&
+				fromString == fromBytes[0];
+			System.out.println();
+			System.out.println("fromReadable() of bytes and of a String " + (same ? "agree" : "disagree!"));
+
+			String bogus = "INCH SEA ANNE LONG AHEM TOURS";
+			System.out.println("fromReadable() of bytes " + (fromReadable(bogus.getBytes(), 0, bogus.length(), fromBytes) ? "accepted" : "rejected") + " [" + bogus + "]");
+		}
+
+		{
+			// RFC 2289 count 0 (as above) and count 1 for "TeSt" and "This is a test."
+			String[] algos = { "MD5", "SHA1" };
+			String[] count0 = { "INCH SEA ANNE LONG AHEM TOUR", "MILT VARY MAST OK SEES WENT" };
+			String[] count1 = { "EASE OIL FUM CURE AWRY AVIS", "CART OTTO HIVE ODE VAT NUT" };
+			java.util.Random random = new java.util.Random();
+			System.out.println();
+			for (int x = 0; x < algos.length; x++) {
+				try {
+					MessageDigest digester = MessageDigest.getInstance(algos[x]);
+					long otp = readableToLong(count0[x]);
+					String readable = toReadable((x == 0) ? stepMD5(otp) : stepSHA1(otp));
+					System.out.println("step" + algos[x] + "() count 1: " + readable + " this is " +
+									   (readable.equals(count1[x]) ? "correct" : "incorrect"));
+
+					int mismatches = 0;
+					for (int y = 0; y < 10000; y++) {
+						otp = random.nextLong();
+						long expected = foldedToLong(foldHash(algos[x], digester.digest(longToFolded(otp))));
+						if (((x == 0) ? stepMD5(otp) : stepSHA1(otp)) != expected)
+							mismatches++;
+					}
+					System.out.println("step" + algos[x] + "() and the " + algos[x] + " digester " +
+									   ((mismatches == 0) ? "agree" : "disagree " + mismatches + " times!"));
+				} catch (NoSuchAlgorithmException e) {
+					System.out.println(e.getMessage());
+				}
+			}
+		}
+
 	}
 
 	/**
 	 * Check to see if an algorithm is valid in Java's Message digester
+	 * and can be folded
 	 *
 	 * @param algo Algorithm to check for
 	 *
@@ -396,13 +1331,33 @@ public class MDC {
 	 */
 	public static boolean validAlgorithm(String algo) {
 		try {
-			MessageDigest digester = MessageDigest.getInstance(algo);
+			MessageDigest digester = getDigester(algo);
+			foldDigest(algo, new byte[digester.getDigestLength()], 0, 
+					   digester.getDigestLength());
 		} catch (NoSuchAlgorithmException e) {
 			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
 		}
 		return true;
 	}
 
+	/** every algorithm foldHash() knows, in the order offered to users */
+	private static final String[] FOLDABLE = 
+		{ "MD5", "SHA1", "SHA-256", "SHA-512", "SHA3-256" };
+
+	/** the foldable algorithms this VM can digest (SHA3 needs Java 9) */
+	public static final String[] ALGORITHMS = availableAlgorithms();
+
+	/** @return the entries of FOLDABLE which pass validAlgorithm() */
+	private static String[] availableAlgorithms() {
+		Vector available = new Vector();
+		for (int x = 0; x < FOLDABLE.length; x++)
+			if (validAlgorithm(FOLDABLE[x]))
+				available.add(FOLDABLE[x]);
+		return (String[])available.toArray(new String[available.size()]);
+	}
+
 	/**
 	 * Struct to hold lists of OTPs
 	 */
@@ -678,4 +1633,28 @@ public class MDC {
 		"YOKE"
 	};
 
+	/** log2 of the hashed dictionary size, at least twice words[] */
+	private static final int WORD_TABLE_BITS = 12;
+	private static final int WORD_TABLE_SIZE = 1 << WORD_TABLE_BITS;
+
+	/**
+	 * The dictionary hashed by packed word (open addressing, linear
+	 * probing, 0 marks an empty slot) so a word is found in a probe
+	 * or two rather than by comparing against every entry
+	 */
+	private static final int[] wordKeys = new int[WORD_TABLE_SIZE];
+	/** index into words[] of the word in the same slot of wordKeys */
+	private static final short[] wordIndexes = new short[WORD_TABLE_SIZE];
+
+	static {
+		for (int x = 0; x < words.length; x++) {
+			int key = packWord(words[x]);
+			int slot = wordSlot(key);
+			while (wordKeys[slot] != 0)
+				slot = (slot + 1) & (WORD_TABLE_SIZE - 1);
+			wordKeys[slot] = key;
+			wordIndexes[slot] = (short)x;
+		}
+	}
+
 }
@@ -35,6 +35,10 @@ package cokshare;
 import java.util.*;
 
 public class PortSequenceKnockDescriptor extends KnockDescriptor {
+
+	/** pinned to the value older builds computed, see UDP_OTP_KnockDescriptor */
+	private static final long serialVersionUID = 3864519655920601311L;
+
 	protected Vector portSeq;
 	protected long timeout;
 
@@ -92,4 +96,9 @@ public class PortSequenceKnockDescriptor extends KnockDescriptor {
 		}
 		return equals;
 	}
+
+	/** hashCode to go with equals */
+	public int hashCode() {
+		return portSeq.hashCode() ^ (int)(timeout ^ (timeout >>> 32));
+	}
 }
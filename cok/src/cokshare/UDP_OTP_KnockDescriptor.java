@@ -37,6 +37,10 @@ import java.util.*;
 
 public class UDP_OTP_KnockDescriptor extends KnockDescriptor {
 
+	/** pinned to the value older builds computed so knocks stored in
+	 * Preferences (or sent by an older COKTool) still deserialize */
+	private static final long serialVersionUID = 5882054425199323168L;
+
 	protected byte[] firstOTP;
 	protected byte[] nextOTP;
 
@@ -49,6 +53,10 @@ public class UDP_OTP_KnockDescriptor extends KnockDescriptor {
 
 	protected HashSet oldKeys;
 
+	/** passwords a knock may skip, accepting one further down the
+	 * list (0, the default, accepts only the next one) */
+	protected int lookAhead;
+
 	public UDP_OTP_KnockDescriptor() {
 		super();
 
@@ -118,6 +126,9 @@ public class UDP_OTP_KnockDescriptor extends KnockDescriptor {
 
 	public HashSet getOldKeys() { return oldKeys; }
 
+	public int getLookAhead() { return lookAhead; }
+	public void setLookAhead(int lookAhead) { this.lookAhead = lookAhead; }
+
 	public String getKnockType() { return "UDP OTP Knock"; }
 	public String getKnockDesc() { return "UDP_OTP_"+rulename + "_" + algorithm + "_" + port; }
 
@@ -129,6 +140,7 @@ public class UDP_OTP_KnockDescriptor extends KnockDescriptor {
 			setSuccessRules(udesc.getSuccessRules());
 			setBadSourceRules(udesc.getBadSourceRules());
 			setReplayRules(udesc.getReplayRules());
+			setLookAhead(udesc.getLookAhead());
 		}
 	}
 
@@ -154,6 +166,17 @@ public class UDP_OTP_KnockDescriptor extends KnockDescriptor {
 		return equals;
 	}
 
+	/**
+	 * hashCode consistent with equals, so descriptors may be used as
+	 * keys
+	 */
+	public int hashCode() {
+		int hashcode = port ^ rulename.hashCode() ^ algorithm.hashCode();
+		for (int i = 0; i < firstOTP.length; i++)
+			hashcode = 31 * hashcode + firstOTP[i];
+		return hashcode;
+	}
+
 	protected synchronized void writeObject(ObjectOutputStream stream) 
 		throws IOException {
 		stream.defaultWriteObject();
@@ -61,6 +61,7 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 	private JLabel labelPort;
 	private JLabel labelKnockDomain;
 	private JLabel labelRulename;
+	private JLabel labelLookAhead;
 	private JLabel labelMessage;
 
 	private JPasswordField passPassphrase;
@@ -69,6 +70,7 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 	private JTextField textPort;
 	private JTextField textRulename;
 	private JTextField textKnockDomain;
+	private JTextField textLookAhead;
 
 	private JButton buttonCalculatePasswords;
 	private JButton buttonEditSuccessRules;
@@ -127,6 +129,7 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 		labelPort        = new JLabel("Port:");
 		labelKnockDomain = new JLabel("Knock Domain:");
 		labelRulename    = new JLabel("Rulename:");
+		labelLookAhead   = new JLabel("Look Ahead:");
 		labelMessage     = new JLabel();
 
 		labelCount.setHorizontalAlignment(JLabel.RIGHT);
@@ -142,8 +145,10 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 		textCount = new JTextField(3);
 		textRulename    = new JTextField();
 		textKnockDomain = new JTextField();	
+		textLookAhead   = new JTextField(3);
 		textPort.setDocument(new UsefulFilter(UsefulFilter.NUM));
 		textCount.setDocument(new UsefulFilter(UsefulFilter.NUM));
+		textLookAhead.setDocument(new UsefulFilter(UsefulFilter.NUM));
 	
 		buttonCalculatePasswords  = new JButton("Calculate OTP List");
 		buttonEditSuccessRules    = new JButton("Edit Success Rules");
@@ -152,8 +157,7 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 		buttonEditValidSourceList = new JButton("Edit Valid Source List");
 		buttonDone                = new JButton("Done >>");
 
-		String[] algorithms = {"MD5","SHA1"};
-		listAlgorithm = new JComboBox(algorithms);
+		listAlgorithm = new JComboBox(MDC.ALGORITHMS);
 		listAlgorithm.setSelectedIndex(1);
 
 		sepBottom = new JSeparator();
@@ -182,6 +186,8 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 		add(buttonEditSuccessRules,    "5,5");
 		add(buttonEditReplayRules,     "7,5");
 		
+		add(labelLookAhead,            "1,7");
+		add(textLookAhead,             "3,7");
 		add(buttonEditBadSourceRules,  "5,7");
 		add(buttonEditValidSourceList, "7,7");
 		add(buttonDone,                "11,7");
@@ -340,6 +346,17 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 			errStr+="Invalid Port Number"; 
 		}
 
+		int lookAhead = 0;
+		try {
+			if (textLookAhead.getText().length() > 0)
+				lookAhead = Integer.parseInt(textLookAhead.getText());
+		} catch (NumberFormatException e) {
+			errs++;
+			if (errStr.length() > 0)
+				errStr+=", ";
+			errStr+="Invalid Look Ahead";
+		}
+
 		String algo = (String)listAlgorithm.getSelectedItem();
 		String rulename = textRulename.getText();
 			
@@ -408,12 +425,14 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 				udpKnockDesc.setPort(port);
 				udpKnockDesc.setRulename(rulename);
 				udpKnockDesc.setAlgorithm(algo);
+				udpKnockDesc.setLookAhead(lookAhead);
 			} else if (EditorType == DNS_EDITOR) {
 				dnsKnockDesc.setFirstOTP(firstOTP);
 				dnsKnockDesc.setNextOTP(firstOTP);
 				dnsKnockDesc.setRulename(rulename);
 				dnsKnockDesc.setAlgorithm(algo);
 				dnsKnockDesc.setKnockDomain(knockDomain);
+				dnsKnockDesc.setLookAhead(lookAhead);
 			} else {
 				// XXX ERROR! XXX
 			}
@@ -433,10 +452,12 @@ class UDP_OTP_KnockEditorPanel extends JPanel {
 			udpKnockDesc.getRulename().length() > 0) {
 			textRulename.setText(udpKnockDesc.getRulename());				
 			textPort.setText(""+udpKnockDesc.getPort());
+			textLookAhead.setText(""+udpKnockDesc.getLookAhead());
 		} else if (EditorType == DNS_EDITOR &&
 				   dnsKnockDesc.getRulename().length() > 0) {
 			textRulename.setText(dnsKnockDesc.getRulename());
 			textKnockDomain.setText(dnsKnockDesc.getKnockDomain());
+			textLookAhead.setText(""+dnsKnockDesc.getLookAhead());
 		}
 	}
 
@@ -0,0 +1,356 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package cokd;
+
+import java.io.*;
+import java.util.*;
+
+import cokshare.COKRuleset;
+import cokshare.DNSKnockDescriptor;
+import cokshare.MDC;
+
+/**
+ * Tests for <code>DNSKnock</code>'s parsing of questions, run by the
+ * test target.  Queries are built by hand, with compression pointers
+ * and malformed names where wanted, and the actions a fresh knock
+ * printed for them are checked against those expected.  Lastly a
+ * great many mutated queries are fed to one knock, which must come
+ * through them without throwing and still open afterwards.
+ */
+public class DNSKnockTest {
+
+	/** mutated queries the fuzzing run feeds the knock */
+	private static final int FUZZED = 300000;
+
+	/** number of checks which failed */
+	private static int failures = 0;
+
+	/** one time passwords of the knocks, with _'s for spaces */
+	private static String[] passwords;
+
+	/** descriptor every knock is made from */
+	private static DNSKnockDescriptor desc;
+
+	/**
+	 * A DNS message being built
+	 */
+	private static class Message {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		/**
+		 * @param flags     the header's flags
+		 * @param questions the question count
+		 */
+		Message(int flags, int questions) {
+			word(0x1234);
+			word(flags);
+			word(questions);
+			word(0);
+			word(0);
+			word(0);
+		}
+
+		/** @return offset of the next byte from the start of the message */
+		int offset() { return out.size(); }
+
+		void word(int w) {
+			out.write(w >> 8);
+			out.write(w);
+		}
+
+		/** write each of the dotted labels given */
+		Message labels(String name) {
+			StringTokenizer st = new StringTokenizer(name, ".");
+			while (st.hasMoreTokens()) {
+				String label = st.nextToken();
+				out.write(label.length());
+				out.write(label.getBytes(), 0, label.length());
+			}
+			return this;
+		}
+
+		/** write a compression pointer to the offset given */
+		Message pointer(int offset) {
+			word(0xc000 | offset);
+			return this;
+		}
+
+		/** end a name, and write the query type and class */
+		Message end() {
+			out.write(0);
+			return type();
+		}
+
+		/** write the query type and class after a name ended by a pointer */
+		Message type() {
+			word(1);
+			word(1);
+			return this;
+		}
+
+		Message raw(int b) {
+			out.write(b);
+			return this;
+		}
+
+		byte[] bytes() { return out.toByteArray(); }
+	}
+
+	/** @return a standard query with the question count given */
+	private static Message query(int questions) {
+		return new Message(0x0100, questions);
+	}
+
+	/**
+	 * Feed DNS messages to a knock, catching what its actions print
+	 *
+	 * @param knock    the knock to feed
+	 * @param messages the messages to send to port 53, in order
+	 *
+	 * @return what was printed, one word per action
+	 */
+	private static String feed(DNSKnock knock, byte[][] messages) {
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed, true));
+		try {
+			PacketView packet = new PacketView();
+			for (int x = 0; x < messages.length; x++) {
+				packet.wrapDatagram(messages[x], messages[x].length, 0x0a000001,
+									1024, 0x0a000002, 53);
+				knock.checkPacket(packet);
+			}
+		} finally {
+			System.setOut(stdout);
+		}
+		return printed.toString().trim().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Report a check
+	 *
+	 * @param test what is being tested
+	 * @param ok   whether it passed
+	 * @param why  what went wrong if it did not
+	 */
+	private static void check(String test, boolean ok, String why) {
+		if (ok) {
+			System.out.println("ok   " + test);
+		} else {
+			System.out.println("FAIL " + test + ": " + why);
+			failures++;
+		}
+	}
+
+	/**
+	 * Send messages to a fresh knock and check the actions it fired
+	 *
+	 * @param test     what is being tested
+	 * @param messages the messages, in order
+	 * @param expected the actions expected to fire, in order
+	 */
+	private static void check(String test, byte[][] messages, String expected) {
+		String fired;
+		try {
+			fired = feed(new DNSKnock(desc), messages);
+		} catch (RuntimeException e) {
+			check(test, false, "threw " + e);
+			return;
+		}
+		check(test, fired.equals(expected),
+			  "expected \"" + expected + "\", fired \"" + fired + "\"");
+	}
+
+	private static void check(String test, byte[] message, String expected) {
+		check(test, new byte[][] { message }, expected);
+	}
+
+	/**
+	 * Feed a single knock a great many mutations of the messages
+	 * given, each framed at a random offset in a buffer of junk, and
+	 * check none of them throws
+	 *
+	 * @param seeds well formed messages to mutate
+	 */
+	private static void fuzz(byte[][] seeds) {
+		DNSKnock knock = new DNSKnock(desc);
+		Random random = new Random(53);
+		PacketView packet = new PacketView();
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+		String thrown = null;
+		try {
+			for (int x = 0; x < FUZZED && thrown == null; x++) {
+				byte[] seed = seeds[random.nextInt(seeds.length)];
+				byte[] message = (byte[])seed.clone();
+				int length = message.length;
+				int mutations = 1 + random.nextInt(4);
+				for (int y = 0; y < mutations; y++) {
+					int at = random.nextInt(length);
+					switch (random.nextInt(5)) {
+					case 0:
+						length = 1 + at;
+						break;
+					case 1:
+						message[at] = (byte)(0xc0 | random.nextInt(64));
+						if (at + 1 < length)
+							message[at + 1] = (byte)random.nextInt(length + 8);
+						break;
+					case 2:
+						message[at] = (byte)(0x40 | random.nextInt(256));
+						break;
+					case 3:
+						message[5] = (byte)random.nextInt(256);
+						break;
+					default:
+						message[at] = (byte)random.nextInt(256);
+					}
+				}
+
+				int offset = random.nextInt(16);
+				byte[] frame = new byte[offset + length + random.nextInt(16)];
+				Arrays.fill(frame, (byte)0xc0);
+				System.arraycopy(message, 0, frame, offset, length);
+				packet.wrapDatagram(frame, length, 0x0a000001, 1024, 0x0a000002, 53);
+				packet.payloadOffset = offset;
+				try {
+					knock.checkPacket(packet);
+				} catch (RuntimeException e) {
+					thrown = e + " on query " + x;
+				}
+			}
+		} finally {
+			System.setOut(stdout);
+		}
+		check(FUZZED + " fuzzed queries are parsed without throwing",
+			  thrown == null, thrown);
+
+		String fired = feed(knock, new byte[][] {
+				query(1).labels(passwords[1] + ".knock.org").end().bytes() });
+		check("the knock still opens after fuzzing", fired.equals("OK"),
+			  "fired \"" + fired + "\"");
+	}
+
+	public static void main(String[] args) throws Exception {
+		MDC.OTPData data = MDC.getOTPData("MD5", "secret passphrase", 10);
+		passwords = new String[data.readablePasswords.length];
+		for (int x = 0; x < passwords.length; x++)
+			passwords[x] = data.readablePasswords[x].replace(' ', '_');
+		desc = new DNSKnockDescriptor(data.firstOTP, data.firstOTP,
+									  new COKRuleset(new String[] { "__PRINT__ OK" }),
+									  new COKRuleset(new String[] { "__PRINT__ BADSRC" }),
+									  new COKRuleset(new String[] { "__PRINT__ REPLAY" }),
+									  "dns", "MD5", "knock.org", new HashSet());
+		String otp = passwords[0];
+
+		byte[] plain = query(1).labels(otp + ".knock.org").end().bytes();
+		check("a plain query opens the knock", plain, "OK");
+		check("the same query again is a replay", new byte[][] { plain, plain },
+			  "OK REPLAY");
+		check("the knock domain is matched ignoring case",
+			  query(1).labels(otp + ".KNOCK.Org").end().bytes(), "OK");
+		check("a name outside the knock domain is ignored",
+			  query(1).labels(otp + ".knock.com").end().bytes(), "");
+		check("the knock domain alone is ignored",
+			  query(2).labels("knock.org").end().labels("knock.org").end().bytes(), "");
+
+		Message response = new Message(0x8180, 1);
+		check("a response is ignored",
+			  response.labels(otp + ".knock.org").end().bytes(), "");
+
+		Message compressed = query(2);
+		int domain = compressed.labels("www").offset();
+		compressed.labels("knock.org").end();
+		check("a name compressed onto an earlier question opens the knock",
+			  compressed.labels(otp).pointer(domain).type().bytes(), "OK");
+
+		Message chained = query(3);
+		int first = chained.offset();
+		chained.labels("knock.org").end();
+		int second = chained.offset();
+		chained.labels("mail").pointer(first).type();
+		check("a pointer to a name ending in a pointer is followed",
+			  chained.labels(otp).pointer(second + 5).type().bytes(), "OK");
+
+		Message forward = query(1);
+		int after = forward.labels(otp).offset() + 2;
+		check("a forward pointer is dropped",
+			  forward.pointer(after + 4).type().labels("knock.org").end().bytes(), "");
+
+		Message self = query(1);
+		int at = self.labels(otp).offset();
+		check("a pointer to itself is dropped",
+			  self.pointer(at).type().bytes(), "");
+
+		Message loop = query(2);
+		loop.labels("knock.org").end();
+		int back = loop.offset();
+		check("a pointer to the start of its own name is dropped",
+			  loop.labels(otp).pointer(back).type().bytes(), "");
+
+		check("a pointer into the header is dropped",
+			  query(1).labels(otp).pointer(4).type().bytes(), "");
+
+		String opened = "";
+		for (int cut = 13; cut < plain.length; cut++) {
+			byte[] truncated = new byte[cut];
+			System.arraycopy(plain, 0, truncated, 0, cut);
+			if (feed(new DNSKnock(desc), new byte[][] { truncated }).length() > 0)
+				opened += " " + cut;
+		}
+		check("a query truncated anywhere after its header is dropped",
+			  opened.length() == 0, "opened when cut to" + opened);
+		byte[] halfPointer = query(2).labels("knock.org").end().labels(otp).raw(0xc0).bytes();
+		check("a name ending in half a pointer is dropped", halfPointer, "");
+		check("a label running off the end is dropped",
+			  query(1).labels(otp + ".knock").raw(3).raw('o').raw('r').bytes(), "");
+
+		check("a label of type 0x40 is dropped",
+			  query(1).labels(otp).raw(0x41).labels("k.knock.org").end().bytes(), "");
+		check("a label of type 0x80 is dropped",
+			  query(1).labels(otp).raw(0x81).labels("k.knock.org").end().bytes(), "");
+
+		Message longName = query(1).labels(otp);
+		String filler = "a123456789b123456789c123456789d123456789e123456789f123456789";
+		for (int x = 0; x < 4; x++)
+			longName.labels(filler);
+		check("a name over 255 bytes is dropped",
+			  longName.labels("knock.org").end().bytes(), "");
+
+		fuzz(new byte[][] { plain, compressed.bytes(), chained.bytes() });
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+}
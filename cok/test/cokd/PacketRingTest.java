@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+/**
+ * Tests for <code>PacketRing</code>, run by the test target.  For
+ * each drop policy a producer thread offers numbered packets to a
+ * small ring while a consumer thread polls them, and the packets the
+ * consumer saw are checked against what the ring says it dropped.
+ */
+public class PacketRingTest {
+
+	/** packets each run offers */
+	private static final int PACKETS = 200000;
+
+	/** number of checks which failed */
+	private static int failures = 0;
+
+	/**
+	 * Report a check
+	 *
+	 * @param test what is being tested
+	 * @param ok   whether it passed
+	 * @param why  what went wrong if it did not
+	 */
+	private static void check(String test, boolean ok, String why) {
+		if (ok) {
+			System.out.println("ok   " + test);
+		} else {
+			System.out.println("FAIL " + test + ": " + why);
+			failures++;
+		}
+	}
+
+	/**
+	 * Run a producer and a consumer over a ring, and check the
+	 * consumer saw the packets in order, each at most once, and that
+	 * every packet was either taken or counted as dropped
+	 *
+	 * @param name       the drop policy's name
+	 * @param dropPolicy the drop policy
+	 * @param lossless   true if no packet may be dropped
+	 */
+	private static void run(String name, int dropPolicy, boolean lossless)
+		throws InterruptedException {
+		final PacketRing ring = new PacketRing(8, dropPolicy);
+		Thread producer = new Thread() {
+				public void run() {
+					for (int x = 0; x < PACKETS; x++)
+						ring.offer(new Integer(x));
+				}
+			};
+		producer.start();
+
+		int taken = 0;
+		int last = -1;
+		boolean ordered = true;
+		while (true) {
+			Integer packet = (Integer)ring.poll();
+			if (packet == null) {
+				if (!producer.isAlive() && ring.getDepth() == 0)
+					break;
+				Thread.yield();
+				continue;
+			}
+			if (packet.intValue() <= last)
+				ordered = false;
+			last = packet.intValue();
+			taken++;
+
+			// fall behind now and then so the ring fills
+			if ((taken & 0xff) == 0)
+				Thread.yield();
+		}
+		producer.join();
+
+		check(name + ": packets come out in order, each once", ordered,
+			  "a packet came out after a later one, or twice");
+		long dropped = ring.getDroppedCount();
+		check(name + ": every packet is taken or counted dropped",
+			  taken + dropped == PACKETS,
+			  taken + " taken and " + dropped + " dropped of " + PACKETS);
+		if (lossless)
+			check(name + ": nothing is dropped", dropped == 0,
+				  dropped + " dropped");
+
+		int filled = 0;
+		for (int x = 0; x < ring.getCapacity(); x++)
+			if (ring.slots.get(x) != null)
+				filled++;
+		check(name + ": an empty ring holds no packets", filled == 0,
+			  filled + " slots still hold a packet");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		run("newest", PacketRing.DROP_NEWEST, false);
+		run("oldest", PacketRing.DROP_OLDEST, false);
+		run("block", PacketRing.BLOCK, true);
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.io.*;
+import java.util.*;
+
+import cokshare.COKRuleset;
+import cokshare.PortSequenceKnockDescriptor;
+
+/**
+ * Regression tests for <code>SequenceAutomaton</code>, run by the
+ * test target.  Each knock's success action prints its name, and the
+ * names printed for a run of SYNs are checked against those expected.
+ */
+public class SequenceAutomatonTest {
+
+	/** number of checks which failed */
+	private static int failures = 0;
+
+	/**
+	 * @return a knock on the ports given, which prints its name
+	 */
+	private static PortSequenceKnock knock(String name, int[] ports) {
+		Vector portSeq = new Vector();
+		for (int x = 0; x < ports.length; x++)
+			portSeq.add(new Integer(ports[x]));
+		COKRuleset rules = new COKRuleset(new String[] { "__PRINT__ " + name });
+		return new PortSequenceKnock(new PortSequenceKnockDescriptor(portSeq, rules,
+																	 rules, 60000));
+	}
+
+	/**
+	 * Send SYNs from one source to the ports given, and check the
+	 * knocks which fired
+	 *
+	 * @param test     what is being tested
+	 * @param knocks   the knocks to compile
+	 * @param ports    the ports the SYNs go to, in order
+	 * @param expected the names of the knocks expected to fire, in order
+	 */
+	private static void check(String test, PortSequenceKnock[] knocks,
+							  int[] ports, String expected) {
+		SequenceAutomaton automaton = new SequenceAutomaton(1024);
+		for (int x = 0; x < knocks.length; x++)
+			automaton.add(knocks[x]);
+
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed, true));
+		try {
+			PacketView packet = new PacketView();
+			packet.protocol = PacketView.TCP;
+			packet.tcpFlags = PacketView.TH_SYN;
+			packet.sourceAddress = 0x0a000001;
+			for (int x = 0; x < ports.length; x++) {
+				packet.destinationPort = ports[x];
+				automaton.checkPacket(packet);
+			}
+		} finally {
+			System.setOut(stdout);
+		}
+
+		String fired = printed.toString().trim().replaceAll("\\s+", " ");
+		if (fired.equals(expected)) {
+			System.out.println("ok   " + test);
+		} else {
+			System.out.println("FAIL " + test + ": expected \"" + expected +
+							   "\", fired \"" + fired + "\"");
+			failures++;
+		}
+	}
+
+	public static void main(String[] args) {
+		PortSequenceKnock a = knock("A", new int[] { 1000, 2000 });
+		PortSequenceKnock b = knock("B", new int[] { 3000, 4000 });
+		check("a stray port of one sequence does not block another",
+			  new PortSequenceKnock[] { a, b },
+			  new int[] { 1000, 3000, 4000 }, "B");
+
+		PortSequenceKnock c = knock("C", new int[] { 2000, 3000 });
+		check("a sequence starts on the last port of another",
+			  new PortSequenceKnock[] { a, c },
+			  new int[] { 1000, 2000, 3000 }, "A C");
+
+		PortSequenceKnock d = knock("D", new int[] { 1000, 2000, 3000 });
+		PortSequenceKnock e = knock("E", new int[] { 1000, 2000, 4000 });
+		check("sequences sharing a prefix go on separately",
+			  new PortSequenceKnock[] { a, d, e },
+			  new int[] { 1000, 2000, 4000, 3000, 3000 }, "A E D");
+
+		check("a finished sequence starts over",
+			  new PortSequenceKnock[] { a, d },
+			  new int[] { 1000, 2000, 2000, 1000, 3000, 2000 }, "A D A");
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Tests for <code>SequenceProgress</code>, run by the test target:
+ * which entry the CLOCK sweep evicts, the cap on entries and the
+ * counts shared between shards, and how new timeouts are put on the
+ * wheel.
+ */
+public class SequenceProgressTest {
+
+	/** number of checks which failed */
+	private static int failures = 0;
+
+	/**
+	 * @param test     what is being tested
+	 * @param got      what was found
+	 * @param expected what was expected
+	 */
+	private static void check(String test, long got, long expected) {
+		if (got == expected) {
+			System.out.println("ok   " + test);
+		} else {
+			System.out.println("FAIL " + test + ": expected " + expected +
+							   ", got " + got);
+			failures++;
+		}
+	}
+
+	/** @return a table for one shard, with its own counts */
+	private static SequenceProgress progress(int limit, long[] timeouts) {
+		return new SequenceProgress(limit, timeouts, 0,
+									new AtomicInteger(0), new AtomicInteger(0));
+	}
+
+	public static void main(String[] args) {
+		long[] timeouts = new long[] { 1000 };
+		long a = SequenceProgress.keyFor(1, 0);
+		long b = SequenceProgress.keyFor(2, 0);
+		long c = SequenceProgress.keyFor(3, 0);
+
+		// wherever the hand starts, b runs out of chances first
+		SequenceProgress sources = progress(2, timeouts);
+		sources.put(a, SequenceProgress.pack(10, 3), 3, 10);
+		sources.put(b, SequenceProgress.pack(10, 1), 1, 10);
+		sources.put(c, SequenceProgress.pack(20, 1), 1, 20);
+		check("the entry which got least far is evicted", sources.get(b), 0);
+		check("the entry which got further is kept",
+			  sources.get(a), SequenceProgress.pack(10, 3));
+		check("the new entry is kept",
+			  sources.get(c), SequenceProgress.pack(20, 1));
+		check("the eviction is counted", sources.getEvictedCount(), 1);
+
+		// a loses a chance each time the hand passes it, so it goes
+		// within MAX_CHANCES + 1 more new entries
+		int added = 0;
+		while (sources.get(a) != 0 && added <= SequenceProgress.MAX_CHANCES + 1) {
+			added++;
+			sources.put(SequenceProgress.keyFor(100 + added, 0),
+						SequenceProgress.pack(30, 1), 1, 30);
+		}
+		check("an entry with chances left is evicted once they run out",
+			  sources.get(a), 0);
+
+		sources = progress(2, timeouts);
+		sources.put(a, SequenceProgress.pack(0, 3), 3, 0);
+		sources.put(b, SequenceProgress.pack(900, 3), 3, 900);
+		sources.put(c, SequenceProgress.pack(1000, 1), 1, 1000);
+		check("a timed out entry goes first, whatever its chances",
+			  sources.get(a), 0);
+		check("and is counted as expired, not evicted",
+			  sources.getExpiredCount() * 10 + sources.getEvictedCount(), 10);
+		check("the entry which has not timed out is kept",
+			  sources.get(b), SequenceProgress.pack(900, 3));
+
+		sources = progress(4, timeouts);
+		int largest = 0;
+		for (int x = 0; x < 10000; x++) {
+			sources.put(SequenceProgress.keyFor(x, 0),
+						SequenceProgress.pack(x / 100, 1), 1, x / 100);
+			largest = Math.max(largest, sources.size());
+		}
+		check("the table never holds more than its limit", largest, 4);
+		check("every entry past the limit evicts one",
+			  sources.getEvictedCount(), 10000 - 4);
+
+		AtomicInteger total = new AtomicInteger(0);
+		AtomicInteger highWater = new AtomicInteger(0);
+		SequenceProgress first = new SequenceProgress(2, timeouts, 0, total, highWater);
+		SequenceProgress second = new SequenceProgress(2, timeouts, 0, total, highWater);
+		first.put(a, SequenceProgress.pack(0, 1), 1, 0);
+		first.put(b, SequenceProgress.pack(0, 1), 1, 0);
+		first.remove(a);
+		first.remove(b);
+		second.put(a, SequenceProgress.pack(0, 1), 1, 0);
+		second.put(b, SequenceProgress.pack(0, 1), 1, 0);
+		check("the shards count their entries together", total.get(), 2);
+		check("the high water mark is the most held at once",
+			  highWater.get(), 2);
+		second.clear(0);
+		check("clearing a shard takes its entries off the count",
+			  total.get(), 0);
+
+		sources = progress(16, new long[] { 100 });
+		sources.put(a, SequenceProgress.pack(0, 1), 1, 0);
+		sources.setTimeouts(new long[] { 1000 });
+		sources.expire(500);
+		check("a lengthened timeout keeps an entry past its old deadline",
+			  sources.get(a), SequenceProgress.pack(0, 1));
+		sources.expire(1000);
+		check("it is dropped at its new deadline", sources.get(a), 0);
+		check("and counted as expired", sources.getExpiredCount(), 1);
+
+		sources = progress(16, new long[] { 1000 });
+		sources.put(a, SequenceProgress.pack(0, 1), 1, 0);
+		sources.setTimeouts(new long[] { 100 });
+		sources.expire(1000);
+		check("a shortened timeout drops an entry by its old deadline",
+			  sources.get(a), 0);
+
+		sources = progress(16, new long[] { 1000 });
+		sources.put(a, SequenceProgress.pack(0, 1), 1, 0);
+		sources.setTimeouts(new long[] { 1000, 1000 });
+		sources.put(SequenceProgress.keyFor(1, 1), SequenceProgress.pack(0, 1), 1, 0);
+		sources.expire(1000);
+		check("entries of a knock added later are put on the wheel",
+			  sources.size(), 0);
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+}
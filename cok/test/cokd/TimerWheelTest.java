@@ -0,0 +1,175 @@
+/*
+ *  Copyright (c) 2004, David Worth <cesium@hexi-dump.org>
+ *  All rights reserved.
+ *  
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *  
+ *  Redistributions of source code must retain the above copyright notice,
+ *  this list of conditions and the following disclaimer.
+ * 
+ *  Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  
+ *  Neither the name of the Hexi-Dump.org nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cokd;
+
+import java.util.*;
+
+/**
+ * Tests for <code>TimerWheel</code>, run by the test target.  The
+ * wheels have 8 buckets of 64 milliseconds, so a rotation is 512
+ * milliseconds, and the keys expired by each advance are checked
+ * against those expected.
+ */
+public class TimerWheelTest {
+
+	/** milliseconds in one rotation of the wheels tested */
+	private static final long ROTATION = 8 * 64;
+
+	/** number of checks which failed */
+	private static int failures = 0;
+
+	/**
+	 * Notes the keys expired, and puts each key back on the wheel
+	 * once, a fixed time after it expired, if asked to
+	 */
+	private static class Recorder implements TimerWheel.Expiry {
+		TimerWheel wheel;
+		long again = -1;
+		StringBuffer fired = new StringBuffer();
+		HashSet rescheduled = new HashSet();
+
+		public void expired(long key, long now) {
+			fired.append(fired.length() > 0 ? " " : "").append(key);
+			if (again >= 0 && rescheduled.add(new Long(key)))
+				wheel.schedule(key, now + again);
+		}
+
+		/** @return the keys expired since last asked, in order */
+		String take() {
+			String keys = fired.toString();
+			fired.setLength(0);
+			return keys;
+		}
+	}
+
+	/**
+	 * @param test     what is being tested
+	 * @param fired    the keys which were expired
+	 * @param expected the keys expected to be
+	 */
+	private static void check(String test, String fired, String expected) {
+		if (fired.equals(expected)) {
+			System.out.println("ok   " + test);
+		} else {
+			System.out.println("FAIL " + test + ": expected \"" + expected +
+							   "\", expired \"" + fired + "\"");
+			failures++;
+		}
+	}
+
+	/**
+	 * @param keys keys separated by spaces
+	 *
+	 * @return the keys in ascending order, as the order keys of
+	 *   different ticks expire in past a whole rotation is not fixed
+	 */
+	private static String sorted(String keys) {
+		String[] split = keys.split(" ");
+		long[] values = new long[split.length];
+		for (int x = 0; x < split.length; x++)
+			values[x] = Long.parseLong(split[x]);
+		Arrays.sort(values);
+		StringBuffer joined = new StringBuffer();
+		for (int x = 0; x < values.length; x++)
+			joined.append(x > 0 ? " " : "").append(values[x]);
+		return joined.toString();
+	}
+
+	public static void main(String[] args) {
+		long start = 1000 * ROTATION;
+
+		TimerWheel wheel = new TimerWheel(6, 3, start);
+		Recorder recorder = new Recorder();
+		wheel.schedule(1, start + 3 * ROTATION + 10);
+		wheel.schedule(2, start + 10);
+		wheel.advance(start + ROTATION + 10, recorder);
+		wheel.advance(start + 2 * ROTATION + 10, recorder);
+		check("a key rotations away stays through earlier rotations",
+			  recorder.take(), "2");
+		wheel.advance(start + 3 * ROTATION + 9, recorder);
+		check("a key is not expired a millisecond early", recorder.take(), "");
+		wheel.advance(start + 3 * ROTATION + 10, recorder);
+		check("a key expires in its own rotation", recorder.take(), "1");
+
+		wheel = new TimerWheel(6, 3, start);
+		for (int x = 0; x < 8; x++)
+			wheel.schedule(x, start + x * 100);
+		wheel.advance(start + 5 * ROTATION, recorder);
+		check("an advance past whole rotations expires each key once",
+			  sorted(recorder.take()), "0 1 2 3 4 5 6 7");
+		check("the wheel is empty afterwards", "" + wheel.size(), "0");
+
+		wheel = new TimerWheel(6, 3, start);
+		wheel.schedule(1, start + 30);
+		wheel.advance(start + 20, recorder);
+		check("a key due later in the tick advanced to is kept",
+			  recorder.take(), "");
+		wheel.advance(start + 30, recorder);
+		check("and expires on a later advance in the same tick",
+			  recorder.take(), "1");
+
+		// six keys in one bucket, each put back a rotation later, so
+		// the bucket grows while it is being visited
+		wheel = new TimerWheel(6, 3, start);
+		recorder.wheel = wheel;
+		recorder.again = ROTATION;
+		for (int x = 1; x <= 6; x++)
+			wheel.schedule(x, start + 5);
+		wheel.advance(start + 5, recorder);
+		check("an expiry may put keys back in the bucket being visited",
+			  recorder.take(), "1 2 3 4 5 6");
+		check("the keys put back are all on the wheel", "" + wheel.size(), "6");
+		wheel.advance(start + ROTATION + 4, recorder);
+		check("keys put back are not expired early", recorder.take(), "");
+		wheel.advance(start + ROTATION + 5, recorder);
+		check("keys put back expire in their rotation",
+			  recorder.take(), "1 2 3 4 5 6");
+
+		// a key put back already due is left for the next advance
+		wheel = new TimerWheel(6, 3, start);
+		recorder = new Recorder();
+		recorder.wheel = wheel;
+		recorder.again = 0;
+		wheel.schedule(7, start + 5);
+		wheel.advance(start + 5, recorder);
+		check("a key put back already due is not expired twice at once",
+			  recorder.take(), "7");
+		wheel.advance(start + 6, recorder);
+		check("it expires on the next advance", recorder.take(), "7");
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+}